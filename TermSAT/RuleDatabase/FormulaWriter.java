@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.ruledb;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.googlecode.termsat.core.Formula;
+import com.googlecode.termsat.core.solver.LatencyHistogram;
+
+
+/**
+ * Writes formulas to a RuleDatabase on a dedicated thread so that the
+ * RuleGenerator does not have to wait for the database.
+ *
+ * Formulas are placed on a bounded queue, the RuleGenerator only blocks
+ * when the queue is full.
+ * The writer thread drains the queue in batches and writes each batch
+ * in a single transaction.
+ * The writer thread has its own RuleDatabase, and thereby its own
+ * connection, the RuleDatabase given to the constructor is only used
+ * for lookups, on the caller's thread.
+ *
+ * Canonical formulas that have been queued but not yet committed are also kept
+ * in memory, indexed by truth table, and the findCanonicalFormula and
+ * getLengthOfCanonicalFormulas methods consult them, so callers always see
+ * the formulas they have added.
+ * Non-canonical formulas never need to be read back by the RuleGenerator,
+ * they're only used to build the InstanceRecognizer.
+ *
+ * The total number of formulas written to the database, over all runs, is
+ * kept in the FORMULAWRITER_PROGRESS table and is updated in the same
+ * transaction as the formulas, so it always matches the rows in the database.
+ * A resumed RuleGenerator uses it to skip formulas that were written
+ * after its last checkpoint (see skipFormulas).
+ *
+ * Queue depth and batch latency are published through JMX as
+ * com.googlecode.termsat:type=FormulaWriter.
+ */
+public class FormulaWriter implements FormulaWriterMBean {
+
+	public static final String OBJECT_NAME= "com.googlecode.termsat:type=FormulaWriter";
+	public static final int DEFAULT_QUEUE_CAPACITY= 10000;
+	public static final int DEFAULT_BATCH_SIZE= 1000;
+	public static final String PROGRESS_TABLE= "FORMULAWRITER_PROGRESS";
+
+	private static class PendingFormula {
+		final Formula formula;
+		final boolean isCanonical;
+		final TruthTable truthTable;
+		PendingFormula(Formula formula, boolean isCanonical, TruthTable truthTable) {
+			this.formula= formula;
+			this.isCanonical= isCanonical;
+			this.truthTable= truthTable;
+		}
+	}
+
+	private final RuleDatabase _database;
+	private final RuleDatabase _writeDatabase;
+	private final int _queueCapacity;
+	private final int _batchSize;
+	private final ArrayBlockingQueue<PendingFormula> _queue;
+
+	// first pending canonical formula for each truth table
+	private final ConcurrentHashMap<TruthTable, Formula> _pendingCanonicals= new ConcurrentHashMap<TruthTable, Formula>();
+
+	private final LatencyHistogram _batchLatency= new LatencyHistogram(); // nanoseconds
+	private final Thread _thread;
+	private final long _previouslyWritten; // by previous runs
+	private long _skip= 0;     // guarded by this
+	private long _added= 0;    // guarded by this
+	private long _written= 0;  // guarded by this
+	private long _batches= 0;  // guarded by this
+	private long _lastCanonical= 0;  // guarded by this, the value of _added when the last canonical formula was added
+	private boolean _closed= false;  // guarded by this
+	private Throwable _failure;  // guarded by this
+
+	/**
+	 * @param database used for lookups on the caller's thread, formulas are
+	 * written through a new RuleDatabase
+	 */
+	public FormulaWriter(RuleDatabase database) throws SQLException {
+		this(database, new RuleDatabase(), DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param database used for lookups on the caller's thread
+	 * @param writeDatabase used only by the writer thread, and shut down when
+	 * the writer is closed
+	 */
+	public FormulaWriter(RuleDatabase database, RuleDatabase writeDatabase, int queueCapacity, int batchSize)
+	 throws SQLException
+	{
+		_database= database;
+		_writeDatabase= writeDatabase;
+		_previouslyWritten= initializeProgress(writeDatabase.getConnection());
+		_queueCapacity= queueCapacity;
+		_batchSize= batchSize;
+		_queue= new ArrayBlockingQueue<PendingFormula>(queueCapacity);
+
+		_thread= new Thread("FormulaWriter") {
+			@Override
+			public void run() {
+				writeFormulas();
+			}
+		};
+		_thread.setDaemon(true);
+		_thread.start();
+
+		register();
+	}
+
+	/*
+	 * Creates the progress table, if needed, and returns the number of 
+	 * formulas written by previous runs.
+	 */
+	private static long initializeProgress(Connection connection) throws SQLException {
+		Statement s= connection.createStatement();
+		try {
+			try {
+				s.execute("CREATE TABLE "+PROGRESS_TABLE+" (ID int NOT NULL, FORMULAS_WRITTEN bigint NOT NULL, PRIMARY KEY (ID))");
+			}
+			catch (SQLException x) {
+				if (!"X0Y32".equals(x.getSQLState())) // table already exists
+					throw x;
+			}
+			ResultSet resultSet= s.executeQuery("SELECT FORMULAS_WRITTEN FROM "+PROGRESS_TABLE+" WHERE ID = 1");
+			try {
+				if (resultSet.next())
+					return resultSet.getLong(1);
+			}
+			finally {
+				resultSet.close();
+			}
+			s.execute("INSERT INTO "+PROGRESS_TABLE+" VALUES (1, 0)");
+			return 0;
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	private void register() {
+		try {
+			MBeanServer server= ManagementFactory.getPlatformMBeanServer();
+			ObjectName name= new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(this, name);
+		}
+		catch (Exception x) {
+			System.err.println("Failed to register "+OBJECT_NAME+": "+x);
+		}
+	}
+
+	/**
+	 * Queues the given formula to be added to the database.
+	 * Blocks if the queue is full.
+	 */
+	public void addFormula(Formula formula, boolean isCanonical) {
+		checkFailure();
+		synchronized (this) {
+			if (0 < _skip) {
+				_skip--;
+				return;
+			}
+		}
+		TruthTable truthTable= null;
+		if (isCanonical) {
+			truthTable= TruthTables.getTruthTable(formula);
+			_pendingCanonicals.putIfAbsent(truthTable, formula);
+		}
+		synchronized (this) {
+			if (_closed)
+				throw new IllegalStateException("FormulaWriter is closed");
+			_added++;
+			if (isCanonical)
+				_lastCanonical= _added;
+		}
+		try {
+			_queue.put(new PendingFormula(formula, isCanonical, truthTable));
+		}
+		catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while adding formula "+formula, x);
+		}
+	}
+
+	/**
+	 * Same as RuleDatabase.findCanonicalFormula, but includes formulas that
+	 * have not been written yet.
+	 */
+	public Formula findCanonicalFormula(Formula formula) {
+		// check pending formulas *before* the database, pending formulas
+		// are only removed after they have been committed
+		Formula pending= null;
+		if (!_pendingCanonicals.isEmpty())
+			pending= _pendingCanonicals.get(TruthTables.getTruthTable(formula));
+		Formula canonical= _database.findCanonicalFormula(formula);
+		return canonical != null ? canonical : pending;
+	}
+
+	/**
+	 * Same as RuleDatabase.getLengthOfCanonicalFormulas, but includes formulas that
+	 * have not been written yet.
+	 */
+	public int getLengthOfCanonicalFormulas(TruthTable truthTable) {
+		Formula pending= _pendingCanonicals.get(truthTable);
+		int length= _database.getLengthOfCanonicalFormulas(truthTable);
+		if (length < 0 && pending != null)
+			return pending.length();
+		return length;
+	}
+
+	/**
+	 * The next given number of formulas added to this writer are discarded.
+	 * Used when resuming from a checkpoint, to skip the formulas that were
+	 * written to the database after the checkpoint was saved.
+	 */
+	public synchronized void skipFormulas(long count) {
+		_skip= count;
+	}
+
+	/**
+	 * @return the total number of formulas written to the database, over all
+	 * runs, less the number of formulas that are still to be skipped.
+	 * After a flush, this is the number of formulas in the database that
+	 * were added before the next formula to be added.
+	 */
+	public synchronized long getTotalFormulasWritten() {
+		return _previouslyWritten + _written - _skip;
+	}
+
+	/**
+	 * Blocks until all formulas added so far have been written to the database.
+	 */
+	public synchronized void flush() {
+		waitForWritten(_added);
+	}
+
+	/**
+	 * Blocks until all canonical formulas added so far have been written to
+	 * the database.
+	 * The FormulaGenerator builds formulas from the canonical formulas in
+	 * the database, so this must be called before asking it for the next
+	 * formula.
+	 * Canonical formulas are rare, so this usually returns immediately.
+	 */
+	public synchronized void flushCanonicalFormulas() {
+		waitForWritten(_lastCanonical);
+	}
+
+	private synchronized void waitForWritten(long target) {
+		while (_written < target && _failure == null) {
+			try {
+				wait();
+			}
+			catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while flushing formulas", x);
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Writes all pending formulas, stops the writer thread, and shuts down
+	 * the writer's database.
+	 */
+	public void close() {
+		try {
+			flush();
+		}
+		finally {
+			synchronized (this) {
+				_closed= true;
+			}
+			_thread.interrupt();
+			try {
+				_thread.join();
+			}
+			catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+			}
+			_writeDatabase.shutdown();
+		}
+	}
+
+	private synchronized void checkFailure() {
+		if (_failure != null)
+			throw new RuntimeException("Failed to write formulas to the rule database", _failure);
+	}
+
+	private void writeFormulas() {
+		ArrayList<PendingFormula> batch= new ArrayList<PendingFormula>(_batchSize);
+		try {
+			Connection connection= _writeDatabase.getConnection();
+			connection.setAutoCommit(false);
+			PreparedStatement updateProgress= connection.prepareStatement(
+					"UPDATE "+PROGRESS_TABLE+" SET FORMULAS_WRITTEN = ? WHERE ID = 1");
+			long total= _previouslyWritten;
+			while (true) {
+				try {
+					batch.add(_queue.take());
+				}
+				catch (InterruptedException x) {
+					synchronized (this) {
+						if (_closed && _queue.isEmpty())
+							return;
+					}
+					continue;
+				}
+				_queue.drainTo(batch, _batchSize - 1);
+
+				long start= System.nanoTime();
+				try {
+					for (PendingFormula pending : batch)
+						_writeDatabase.addFormula(pending.formula, pending.isCanonical);
+					updateProgress.setLong(1, total + batch.size());
+					updateProgress.executeUpdate();
+					connection.commit();
+					total+= batch.size();
+				}
+				catch (Throwable t) {
+					connection.rollback();
+					throw t;
+				}
+				_batchLatency.record(System.nanoTime() - start);
+
+				for (PendingFormula pending : batch) {
+					if (pending.isCanonical)
+						_pendingCanonicals.remove(pending.truthTable, pending.formula);
+				}
+				synchronized (this) {
+					_written+= batch.size();
+					_batches++;
+					notifyAll();
+				}
+				batch.clear();
+			}
+		}
+		catch (Throwable t) {
+			synchronized (this) {
+				_failure= t;
+				notifyAll();
+			}
+		}
+	}
+
+
+	//
+	// FormulaWriterMBean
+	//
+
+	public int getQueueDepth() {
+		return _queue.size();
+	}
+
+	public int getQueueCapacity() {
+		return _queueCapacity;
+	}
+
+	public synchronized long getFormulasWritten() {
+		return _written;
+	}
+
+	public synchronized long getBatchesWritten() {
+		return _batches;
+	}
+
+	public long getBatchLatencyMeanMicros() {
+		return (long)(_batchLatency.getMean() / 1000);
+	}
+
+	public long getBatchLatencyP99Micros() {
+		return _batchLatency.getValueAtPercentile(99) / 1000;
+	}
+
+	public long getBatchLatencyMaxMicros() {
+		return _batchLatency.getMax() / 1000;
+	}
+}
@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.ruledb;
+
+
+/**
+ * JMX view of a FormulaWriter.
+ * Registered as com.googlecode.termsat:type=FormulaWriter.
+ */
+public interface FormulaWriterMBean {
+
+	int getQueueDepth();
+	int getQueueCapacity();
+	long getFormulasWritten();
+	long getBatchesWritten();
+	long getBatchLatencyMeanMicros();
+	long getBatchLatencyP99Micros();
+	long getBatchLatencyMaxMicros();
+}
@@ -17,12 +17,11 @@
  ******************************************************************************/
 package com.googlecode.termsat.core.ruledb;
 
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 
-import com.googlecode.termsat.core.Formula;
-
 
 /**
  * This program implements the 
@@ -65,14 +64,18 @@ public class RuleCompletionGenerator {
 		try {
 			// initialize rule set with all rules from generated by the RuleGenerator program
 			RuleDatabase ruleDatabase= new RuleDatabase();
-			ResultIterator<Formula> nonCanonicalFormulas= ruleDatabase.getAllNonCanonicalFormulas();
-			while (nonCanonicalFormulas.hasNext()) {
-				Formula nonCanonicalFormula= nonCanonicalFormulas.next();
-				ReductionRule rule= new ReductionRule(nonCanonicalFormula, ruleDatabase.findCanonicalFormula(nonCanonicalFormula));
-				_rules.add(rule);
-				System.out.println("Added rule #"+_rules.size()+": "+rule);
+			RuleLoader.Cursor rules= RuleLoader.create(ruleDatabase).getAllReductionRules();
+			try {
+				while (rules.hasNext()) {
+					_rules.add(rules.next());
+					if (_rules.size() % 10000 == 0)
+						System.out.println("Total rules loaded: "+_rules.size());
+				}
+			}
+			finally {
+				rules.close();
 			}
-			nonCanonicalFormulas.close();
+			System.out.println("Total rules loaded: "+_rules.size());
 
 			CompletionGenerator1 generator= new CompletionGenerator1(_rules);
 			Enumeration<ReductionRule> found= generator.run();
@@ -83,6 +86,8 @@ public class RuleCompletionGenerator {
 
 		} catch (SQLException e) {
 			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
 	}
 }
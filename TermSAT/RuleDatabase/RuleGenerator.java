@@ -17,13 +17,19 @@
  ******************************************************************************/
 package com.googlecode.termsat.core.ruledb;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.googlecode.termsat.core.Formula;
 import com.googlecode.termsat.core.InstanceRecognizer;
 import com.googlecode.termsat.core.SubstitutionInstance;
+import com.googlecode.termsat.core.solver.RuleMetrics;
 import com.googlecode.termsat.core.utils.ServerCommandLineInterface;
 
 
@@ -49,6 +55,32 @@ import com.googlecode.termsat.core.utils.ServerCommandLineInterface;
  * generated (because formulas longer than that are guaranteed to be reducible
  * by a previously generated reduction rule). 
  * 
+ * When started with the -normalizeVariables option this program only fully 
+ * processes one formula from each set of formulas that are variable renamings 
+ * of each other (see VariableNormalizer), the other formulas in the set 
+ * inherit the outcome of the first one.
+ * The FormulaGenerator still generates every formula, only the matching and 
+ * the database lookups are skipped for the renamings.
+ * The outcomes of canonical sets are all remembered, but only the most 
+ * recently seen MAX_REDUCIBLE_OUTCOMES reducible sets are, a renaming of a 
+ * set that has been forgotten is fully processed again.
+ * 
+ * When started with the '-checkpoint <folder>' option this program periodically 
+ * saves its progress to the given folder (see RuleGeneratorCheckpoint), 
+ * every 5 minutes by default, or as set by '-checkpointInterval <seconds>'. 
+ * When started again with the same folder it resumes from the last checkpoint, 
+ * the rules are reloaded from the checkpoint instead of the database and the 
+ * formulas before the checkpoint are not processed again.
+ * The FormulaGenerator can't start from an arbitrary formula though, so 
+ * resuming still enumerates every formula up to the checkpoint, which takes 
+ * a large part of the time it took to generate them in the first place.
+ * A checkpoint is not saved when the program stops because of an error, 
+ * so that it resumes from the last consistent state.
+ * 
+ * Formulas are written to the database by a FormulaWriter on a separate thread, 
+ * so that generation does not wait on the database, except for canonical 
+ * formulas, which must be written before the next formula is generated.
+ * 
  * The database of basic reduction rules generated by this program is then 
  * used as input into the RuleIndexer and RuleRepository programs.  
  * 
@@ -60,13 +92,79 @@ import com.googlecode.termsat.core.utils.ServerCommandLineInterface;
 public class RuleGenerator {
 	
 	public static void main(String[] args) {
-		new RuleGenerator().run();
+		boolean normalizeVariables= false;
+		File checkpointFolder= null;
+		long checkpointInterval= DEFAULT_CHECKPOINT_INTERVAL;
+		for (int a= 0; a < args.length; a++) {
+			if (args[a].equals("-normalizeVariables")) {
+				normalizeVariables= true;
+			}
+			else if (args[a].equals("-checkpoint") && a+1 < args.length) {
+				checkpointFolder= new File(args[++a]);
+			}
+			else if (args[a].equals("-checkpointInterval") && a+1 < args.length) {
+				checkpointInterval= Long.parseLong(args[++a]) * 1000;
+			}
+			else
+				throw new IllegalArgumentException("Usage: RuleGenerator [-normalizeVariables] "+
+						"[-checkpoint <folder> [-checkpointInterval <seconds>]]");
+		}
+		new RuleGenerator(normalizeVariables, checkpointFolder, checkpointInterval).run();
 	}
+	
+	public static final long DEFAULT_CHECKPOINT_INTERVAL= 5 * 60 * 1000;
 
 	private FormulaGenerator _formulaGenerator;
 	private ServerCommandLineInterface _commandLine;
 	private RuleDatabase _database;
+	private FormulaWriter _writer;
 	private InstanceRecognizer _recognizer= new InstanceRecognizer();
+	private RuleMetrics _metrics= RuleMetrics.getInstance();
+	
+	private final boolean _normalizeVariables;
+	
+	/**
+	 * The number of reducible normalized formulas remembered when 
+	 * the -normalizeVariables option is used.
+	 */
+	public static final int MAX_REDUCIBLE_OUTCOMES= 1 << 16;
+	
+	/* 
+	 * Outcomes of the formulas processed at the current length, as 
+	 * normalized formulas, the canonical ones are all kept and the reducible 
+	 * ones are kept in least recently used order.
+	 * Renamings always have the same length so these are cleared whenever the 
+	 * length changes. 
+	 */
+	private HashSet<String> _canonicalOutcomes= new HashSet<String>();
+	private LinkedHashMap<String, Boolean> _reducibleOutcomes= new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return MAX_REDUCIBLE_OUTCOMES < size();
+		}
+	};
+	private int _normalizedLength= -1;
+	
+	private RuleGeneratorCheckpoint _checkpoint;
+	private final long _checkpointInterval;
+	private long _lastCheckpointTime;
+	private Formula _lastProcessed;
+	private boolean _failed= false;
+	
+	public RuleGenerator() {
+		this(false, null, DEFAULT_CHECKPOINT_INTERVAL);
+	}
+	
+	/**
+	 * @param checkpointFolder if not null then progress is saved to, and resumed from, this folder
+	 * @param checkpointInterval milliseconds between checkpoints
+	 */
+	public RuleGenerator(boolean normalizeVariables, File checkpointFolder, long checkpointInterval) {
+		_normalizeVariables= normalizeVariables;
+		if (checkpointFolder != null)
+			_checkpoint= new RuleGeneratorCheckpoint(checkpointFolder);
+		_checkpointInterval= checkpointInterval;
+	}
 	
 
 	public void run() {
@@ -75,15 +173,25 @@ public class RuleGenerator {
 			setup();
 			
 			Formula formula = _formulaGenerator.getStartingFormula();
+			if (_checkpoint != null && _checkpoint.getFormula() != null)
+				formula= skipPastCheckpoint(formula);
 
 			while (formula != null && !_commandLine.isShutdown()) {
-
 				processFormula(formula);
+				_lastProcessed= formula;
+				if (_checkpoint != null && _checkpointInterval <= System.currentTimeMillis() - _lastCheckpointTime)
+					saveCheckpoint();
+				
+				// the FormulaGenerator builds longer formulas from the canonical 
+				// formulas in the database when it moves on to the next length, 
+				// so they must all be written before asking for the next formula 
+				_writer.flushCanonicalFormulas();
 				formula = _formulaGenerator.getNextWellFormedFormula();
 			}
 
 		} 
 		catch (Throwable e) {
+			_failed= true;
 			e.printStackTrace();
 		}
 		finally {
@@ -92,45 +200,144 @@ public class RuleGenerator {
 
 	}
 
-	private void setup() throws SQLException {
+	/*
+	 * Enumerates, but does not process, all formulas up to and including the 
+	 * last formula processed before the checkpoint was saved.
+	 * Only the enumeration is repeated, matching and database access are skipped, 
+	 * but the enumeration itself still visits every formula before the checkpoint.
+	 */
+	private Formula skipPastCheckpoint(Formula formula) {
+		String resumeFrom= _checkpoint.getFormula();
+		int resumeLength= _checkpoint.getLength();
+		System.out.println("Resuming from formula "+resumeFrom);
+		while (formula != null) {
+			if (formula.length() == resumeLength && formula.toString().equals(resumeFrom))
+				return _formulaGenerator.getNextWellFormedFormula();
+			if (resumeLength < formula.length())
+				break;
+			formula= _formulaGenerator.getNextWellFormedFormula();
+		}
+		throw new IllegalStateException("Checkpoint formula "+resumeFrom+" was not generated, "+
+				"the checkpoint does not match the database");
+	}
+
+	/*
+	 * The formulas that were written to the database after the checkpoint was 
+	 * saved will be processed again, and, since processing is deterministic, 
+	 * they will produce the same formulas in the same order, so the writer 
+	 * just needs to skip that many formulas. 
+	 */
+	private void skipWrittenFormulas() {
+		long checkpointed= _checkpoint.getFormulasWritten();
+		if (checkpointed < 0)
+			throw new IllegalStateException("The checkpoint does not record the number of formulas written "+
+					"to the database, delete it and start over");
+		long written= _writer.getTotalFormulasWritten();
+		if (written < checkpointed)
+			throw new IllegalStateException("The database has "+written+" formulas but the checkpoint expects "+
+					checkpointed+", the checkpoint does not match the database");
+		_writer.skipFormulas(written - checkpointed);
+		System.out.println("Skipping "+(written - checkpointed)+" formulas written after the checkpoint");
+	}
+
+	private void saveCheckpoint() throws IOException {
+		if (_lastProcessed != null) {
+			_writer.flush();
+			_checkpoint.save(_lastProcessed, _writer.getTotalFormulasWritten());
+			System.out.println("Saved checkpoint at formula "+_lastProcessed);
+		}
+		_lastCheckpointTime= System.currentTimeMillis();
+	}
+
+	private void setup() throws SQLException, IOException {
 		addShutdownHook();
 		
 		_commandLine= new ServerCommandLineInterface("Rule Generator", ">>> ");
 		ServerCommandLineInterface.start(_commandLine, System.in, System.out);
 
 		_database = new RuleDatabase();
+		_writer= new FormulaWriter(_database);
 		_formulaGenerator= new FormulaGenerator(_database);
 		
-		for (Iterator<Formula> i= _database.getAllNonCanonicalFormulas(); i.hasNext();) {
-			_recognizer.addFormula(i.next());
+		if (_checkpoint != null && _checkpoint.exists()) {
+			int count= _checkpoint.resume(_recognizer);
+			System.out.println("Loaded "+count+" rules from checkpoint");
+			skipWrittenFormulas();
+		}
+		else {
+			if (_checkpoint != null)
+				_checkpoint.start();
+			for (Iterator<Formula> i= _database.getAllNonCanonicalFormulas(); i.hasNext();) {
+				addRule(i.next());
+			}
 		}
+		_lastCheckpointTime= System.currentTimeMillis();
+	}
+	
+	private void addRule(Formula formula) throws IOException {
+		_recognizer.addFormula(formula);
+		if (_checkpoint != null)
+			_checkpoint.ruleAdded(formula);
 	}
 
-	private void processFormula(Formula formula) {
+	private void processFormula(Formula formula) throws IOException {
 		
+		String normalized= null;
+		if (_normalizeVariables) {
+			if (formula.length() != _normalizedLength) {
+				_canonicalOutcomes.clear();
+				_reducibleOutcomes.clear();
+				_normalizedLength= formula.length();
+			}
+			normalized= VariableNormalizer.normalize(formula.toString());
+			if (_canonicalOutcomes.contains(normalized)) {
+				System.out.println(formula+" is canonical.");
+				_writer.addFormula(formula, true);
+				return;
+			}
+			if (_reducibleOutcomes.get(normalized) != null) {
+				System.out.println(formula+" is a renaming of reducible formula "+normalized);
+				return;
+			}
+		}
+		
+		boolean isCanonical= false;
 		ReductionRule reductionRule= formulaCanBeReduced(formula);
 		if (reductionRule== null) {
 			
-			boolean isCanonical= isCanonicalFormula(formula);
+			isCanonical= isCanonicalFormula(formula);
 			
 			if (isCanonical) {
 					System.out.println(formula+" is canonical.");
 			}
 			else {
-				_recognizer.addFormula(formula);
-				reductionRule= new ReductionRule(formula, _database.findCanonicalFormula(formula));
+				reductionRule= new ReductionRule(formula, _writer.findCanonicalFormula(formula));
 				System.out.println("Found a new reduction rule: "+reductionRule);
 			}
-			_database.addFormula(formula, isCanonical);
+			_writer.addFormula(formula, isCanonical);
+			
+			// the rule is only logged when the formula is done, a checkpoint 
+			// must not include a rule whose formula was not written 
+			if (!isCanonical)
+				addRule(formula);
 		}
 		else {
 			System.out.println(formula+" can be reduced using rule "+reductionRule);
 		}
+		
+		// renamings of a new rule are instances of the rule, so they're reducible
+		if (normalized != null) {
+			if (isCanonical) {
+				_canonicalOutcomes.add(normalized);
+			}
+			else
+				_reducibleOutcomes.put(normalized, Boolean.TRUE);
+		}
 	}
 
 	private Boolean isCanonicalFormula(Formula formula) {
 		TruthTable truthTable= TruthTables.getTruthTable(formula);
-		int length= _database.getLengthOfCanonicalFormulas(truthTable);
+		int length= _writer.getLengthOfCanonicalFormulas(truthTable);
 		if (length < 0) // no canonical formulas in database
 			return true;
 		
@@ -168,13 +375,27 @@ public class RuleGenerator {
 	 */
 	private ReductionRule formulaCanBeReduced(Formula formula) {
 		SubstitutionInstance match= _recognizer.findFirstMatch(formula);
+		_metrics.matchAttempted(match != null);
 		if (match == null)
 			return null;
-		Formula canonicalFormula= _database.findCanonicalFormula(match.canonicalFormula);
+		Formula canonicalFormula= _writer.findCanonicalFormula(match.canonicalFormula);
 		return new ReductionRule(match.canonicalFormula, canonicalFormula);
 	}
 
 	private void shutdown() {
+		try {
+			if (_writer != null)
+				_writer.close();
+			if (_checkpoint != null) {
+				// after an error the last checkpoint saved is the last consistent state
+				if (!_failed)
+					saveCheckpoint();
+				_checkpoint.close();
+			}
+		}
+		catch (Throwable e) {
+			e.printStackTrace();
+		}
 		_database.shutdown();
 	}
 
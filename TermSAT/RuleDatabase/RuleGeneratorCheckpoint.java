@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.ruledb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import com.googlecode.termsat.core.Formula;
+import com.googlecode.termsat.core.InstanceRecognizer;
+
+
+/**
+ * Saves the progress of the RuleGenerator so that an interrupted run
+ * can be resumed without rebuilding the InstanceRecognizer from the
+ * database and without reprocessing every formula from the start.
+ * The formulas before the checkpoint are still enumerated again when
+ * resuming, only their processing is skipped (see RuleGenerator).
+ *
+ * A checkpoint folder contains two files...
+ * 	rules.log - every formula added to the RuleGenerator's InstanceRecognizer,
+ * 		one per line, in the order in which they were added.
+ * 		The log is appended to as rules are found.
+ * 	cursor.properties - the length and text of the last formula that was
+ * 		completely processed, the length of rules.log at that time, and
+ * 		the number of formulas that had been written to the database
+ * 		(see FormulaWriter.getTotalFormulasWritten).
+ * 		The cursor is replaced atomically, so it always describes a
+ * 		consistent state, even if the process is killed while saving.
+ *
+ * When resuming, rules.log is truncated to the length recorded in the
+ * cursor, thus discarding rules found after the last checkpoint, since
+ * the formulas that produced them will be processed again.
+ * The formulas written to the database after the last checkpoint are
+ * not written again, the RuleGenerator skips as many formulas as were
+ * written to the database after the checkpoint was saved.
+ */
+public class RuleGeneratorCheckpoint {
+
+	private static final String CURSOR_FILE= "cursor.properties";
+	private static final String RULES_FILE= "rules.log";
+	private static final Charset UTF8= Charset.forName("UTF-8");
+
+	private final File _folder;
+	private final File _cursorFile;
+	private final File _rulesFile;
+	private FileOutputStream _rulesStream;
+	private Writer _rulesLog;
+	private int _length= -1;
+	private String _formula;
+	private long _formulasWritten= -1;
+
+	public RuleGeneratorCheckpoint(File folder) {
+		_folder= folder;
+		_cursorFile= new File(folder, CURSOR_FILE);
+		_rulesFile= new File(folder, RULES_FILE);
+	}
+
+	/**
+	 * @return true if there is a saved checkpoint to resume from
+	 */
+	public boolean exists() {
+		return _cursorFile.exists();
+	}
+
+	/**
+	 * @return the text of the last formula processed before the checkpoint was saved
+	 */
+	public String getFormula() {
+		return _formula;
+	}
+
+	/**
+	 * @return the length of the last formula processed before the checkpoint was saved
+	 */
+	public int getLength() {
+		return _length;
+	}
+
+	/**
+	 * @return the number of formulas that had been written to the database when
+	 * the checkpoint was saved, or -1 if the checkpoint did not record it
+	 */
+	public long getFormulasWritten() {
+		return _formulasWritten;
+	}
+
+	/**
+	 * Loads the saved checkpoint and adds all the saved rules to the given recognizer.
+	 * @return the number of rules loaded
+	 */
+	public int resume(InstanceRecognizer recognizer) throws IOException {
+		Properties cursor= new Properties();
+		FileInputStream in= new FileInputStream(_cursorFile);
+		try {
+			cursor.load(in);
+		}
+		finally {
+			in.close();
+		}
+		_length= Integer.parseInt(cursor.getProperty("length"));
+		_formula= cursor.getProperty("formula");
+		long rulesLength= Long.parseLong(cursor.getProperty("rules.length"));
+		_formulasWritten= Long.parseLong(cursor.getProperty("formulas.written", "-1"));
+
+		RandomAccessFile rulesFile= new RandomAccessFile(_rulesFile, "rw");
+		try {
+			rulesFile.setLength(rulesLength);
+		}
+		finally {
+			rulesFile.close();
+		}
+
+		int count= 0;
+		BufferedReader reader= new BufferedReader(new InputStreamReader(new FileInputStream(_rulesFile), UTF8), 1 << 16);
+		try {
+			String line;
+			while ((line= reader.readLine()) != null) {
+				recognizer.addFormula(Formula.createFormula(line));
+				count++;
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		openRulesLog(true);
+		return count;
+	}
+
+	/**
+	 * Starts a new checkpoint, discarding any previously saved checkpoint.
+	 */
+	public void start() throws IOException {
+		if (!_folder.exists() && !_folder.mkdirs())
+			throw new IOException("Failed to create checkpoint folder "+_folder);
+		_cursorFile.delete();
+		openRulesLog(false);
+	}
+
+	/**
+	 * Records a formula that was added to the RuleGenerator's InstanceRecognizer.
+	 */
+	public void ruleAdded(Formula formula) throws IOException {
+		_rulesLog.write(formula.toString());
+		_rulesLog.write('\n');
+	}
+
+	/**
+	 * Saves a checkpoint.
+	 * All the effects of processing the given formula, and all formulas before it,
+	 * must be complete before calling this method.
+	 * @param formulasWritten the number of formulas in the database
+	 */
+	public void save(Formula lastProcessed, long formulasWritten) throws IOException {
+		_rulesLog.flush();
+		_rulesStream.getFD().sync();
+
+		Properties cursor= new Properties();
+		cursor.setProperty("length", Integer.toString(lastProcessed.length()));
+		cursor.setProperty("formula", lastProcessed.toString());
+		cursor.setProperty("rules.length", Long.toString(_rulesFile.length()));
+		cursor.setProperty("formulas.written", Long.toString(formulasWritten));
+
+		File tempFile= new File(_folder, CURSOR_FILE+".tmp");
+		FileOutputStream out= new FileOutputStream(tempFile);
+		try {
+			cursor.store(out, "RuleGenerator checkpoint");
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		Files.move(tempFile.toPath(), _cursorFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		_length= lastProcessed.length();
+		_formula= lastProcessed.toString();
+		_formulasWritten= formulasWritten;
+	}
+
+	public void close() throws IOException {
+		if (_rulesLog != null) {
+			_rulesLog.close();
+			_rulesLog= null;
+		}
+	}
+
+	private void openRulesLog(boolean append) throws IOException {
+		_rulesStream= new FileOutputStream(_rulesFile, append);
+		_rulesLog= new OutputStreamWriter(_rulesStream, UTF8);
+	}
+}
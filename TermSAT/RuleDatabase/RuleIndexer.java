@@ -17,11 +17,29 @@
  ******************************************************************************/
 package com.googlecode.termsat.core.ruledb;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.googlecode.termsat.core.Formula;
 import com.googlecode.termsat.core.InstanceRecognizer;
@@ -36,6 +54,28 @@ import com.googlecode.termsat.core.utils.TrieMap.Node;
  * Canonical formulas use negative numbers for Id.
  * Noncanonical formulas use positive numbers. 
  * 
+ * By default the trie of noncanonical formulas is numbered in the order 
+ * in which the trie is visited (pre-order).
+ * The trie is exported in parallel, by '-threads <count>' threads, 
+ * the number of processors by default.
+ * The ids of the nodes near the root, and the size of their subtrees, are 
+ * computed first, and then each subtree at depth SPLIT_DEPTH is exported 
+ * by a separate task, starting at the id assigned to its root.
+ * The ids are thereby the same no matter how many threads are used. 
+ * When run with '-profile <file>' the RuleIndexer reads rule application 
+ * counts written by a training run (see RuleMetrics.writeRuleProfile), 
+ * maps the counted rule ids back to formulas using the existing index, and 
+ * writes a new index to db/rules-index-profiled in which the children of 
+ * every node are ordered by how often the rules below them were applied.
+ * Hot nodes are thereby numbered contiguously, and since the RuleRepository 
+ * searches the children of a node in order of their ids, the most frequently 
+ * applied rules are found first. 
+ * Run the solver with -Dtermsat.rules.index=db/rules-index-profiled to 
+ * use the profiled index (see RuleRepository). 
+ * 
+ * The index can also be created from rules that are not in the rule 
+ * database, see the RuleIndexer(String, int) constructor. 
+ * 
  * @author Ted Stockwell <emorning@yahoo.com>
  *
  */
@@ -43,43 +83,110 @@ public class RuleIndexer {
 	
 	public const final String dbFolder= "db/rules-index";
 	public const final String dbURL= RuleDatabase.protocol+dbFolder+RuleDatabase.options;
+	public static final String profiledDbFolder= dbFolder+"-profiled";
+	
+	/*
+	 * Subtrees rooted at this depth are exported as separate tasks 
+	 */
+	private static final int SPLIT_DEPTH= 3;
+	private static final int BATCH_SIZE= 1000;
 	
-	public static void main(String[] args) throws SQLException {
+	public static void main(String[] args) throws SQLException, IOException {
 		new RuleIndexer(args);
 	}
 	
-	const RuleDatabase _ruleDatabase= new RuleDatabase();
+	String _indexURL;
 	Connection _indexConnection;
-	int _nextNoncanonicalIndex= 1;
-	HashMap<Node<Formula>, Integer> _noncanonicalIdentifiers= new HashMap<Node<Formula>, Integer>();
+	int _threadCount= Runtime.getRuntime().availableProcessors();
+	AtomicInteger _noncanonicalCount= new AtomicInteger();
 	int _nextCanonicalIndex= -1;
 	TreeMap<String, Integer> _canonicalIdentifiers= new TreeMap<String, Integer>();
 	
 	const private InstanceRecognizer _noncanonicalFormulas= new InstanceRecognizer();
+	// the canonical formula for each rule in _noncanonicalFormulas, keyed by the rule's text 
+	// since the trie doesn't necessarily return the instance that was added
+	private final HashMap<String, Formula> _canonicalFormulas= new HashMap<String, Formula>();
 	
-	public RuleIndexer(String[] args) throws SQLException {
-		_indexConnection= RuleDatabase.createConnection(dbURL);
+	public RuleIndexer(String[] args) throws SQLException, IOException {
+		String profileFile= null;
+		for (int a= 0; a < args.length; a++) {
+			if (args[a].equals("-profile") && a+1 < args.length) {
+				profileFile= args[++a];
+			}
+			else if (args[a].equals("-threads") && a+1 < args.length) {
+				_threadCount= Integer.parseInt(args[++a]);
+			}
+			else
+				throw new IllegalArgumentException("Usage: RuleIndexer [-profile <rule profile file>] [-threads <count>]");
+		}
 		
-		ResultIterator<Formula> nonCanonicalFormulas= _ruleDatabase.getAllNonCanonicalFormulas();
+		// read the profile before creating the new index, since the rule ids 
+		// in the profile refer to the existing index  
+		Map<String, Long> ruleHits= null;
+		if (profileFile != null) 
+			ruleHits= readRuleProfile(profileFile);
+		
+		_indexURL= ruleHits == null ? 
+				dbURL : 
+				RuleDatabase.protocol+profiledDbFolder+RuleDatabase.options;
+		_indexConnection= RuleDatabase.createConnection(_indexURL);
+		
+		RuleDatabase ruleDatabase= new RuleDatabase();
+		RuleLoader.Cursor rules= RuleLoader.create(ruleDatabase).getAllReductionRules();
 		int i= 0;
-		while ( nonCanonicalFormulas.hasNext()) {
-			Formula f= nonCanonicalFormulas.next();
-			_noncanonicalFormulas.addFormula(f);
-			System.out.println("Total non-canonical formulas loaded: "+(++i));
+		try {
+			while (rules.hasNext()) {
+				addRule(rules.next());
+				if (++i % 10000 == 0)
+					System.out.println("Total non-canonical formulas loaded: "+i);
+			}
 		}
+		finally {
+			rules.close();
+		}
+		System.out.println("Total non-canonical formulas loaded: "+i);
 		
-		
+		createIndex(ruleDatabase.getAllCanonicalFormulasInLexicalOrder(), ruleHits);
+	}
+	
+	/**
+	 * Creates an indexer that writes to the database at the given URL, 
+	 * using the given number of threads.
+	 * Add the rules to be indexed with addRule and then call createIndex. 
+	 */
+	public RuleIndexer(String indexURL, int threadCount) throws SQLException {
+		_indexURL= indexURL;
+		_threadCount= threadCount;
+		_indexConnection= RuleDatabase.createConnection(_indexURL);
+	}
+	
+	public void addRule(ReductionRule rule) {
+		_noncanonicalFormulas.addFormula(rule.formula);
+		_canonicalFormulas.put(rule.formula.toString(), rule.reduction);
+	}
+	
+	/**
+	 * Creates the index tables and writes the rules added with addRule.
+	 * @param canonicalFormulas all the canonical formulas, in lexical order, 
+	 * 	canonical ids are assigned in this order  
+	 * @param ruleHits rule application counts by trie key, if not null then 
+	 * 	the children of each node are ordered by rule applications 
+	 */
+	public void createIndex(Iterator<Formula> canonicalFormulas, Map<String, Long> ruleHits) throws SQLException {
 		createNonCanonicalTable();
 		createCanonicalTable();
 		
 		
-		populateCanonicalTable();
-		populateNoncanonicalTable();
+		populateCanonicalTable(canonicalFormulas);
+		if (ruleHits == null) {
+			populateNoncanonicalTable();
+		}
+		else
+			populateNoncanonicalTableInProfileOrder(ruleHits);
 	}
 	
 
-	private void populateCanonicalTable() throws SQLException {
-		ResultIterator<Formula> canonicalFormulas= _ruleDatabase.getAllCanonicalFormulasInLexicalOrder();
+	private void populateCanonicalTable(Iterator<Formula> canonicalFormulas) throws SQLException {
 		int i= 0;
 		while ( canonicalFormulas.hasNext()) {
 			Formula f= canonicalFormulas.next();
@@ -123,46 +230,314 @@ public class RuleIndexer {
 			s.close();
 	}
 
+	/*
+	 * A node near the root of the trie, with its pre-order id and the 
+	 * number of nodes in its subtree, including itself.
+	 */
+	private static class ShallowNode {
+		final String key;
+		final char symbol;
+		final Formula rule;
+		final int depth;
+		final int id;
+		int size;
+		ShallowNode(String key, char symbol, Formula rule, int depth, int id) {
+			this.key= key;
+			this.symbol= symbol;
+			this.rule= rule;
+			this.depth= depth;
+			this.id= id;
+		}
+	}
+
 	private void populateNoncanonicalTable() throws SQLException {
+		
+		// number the nodes near the root and size their subtrees
+		final ArrayList<ShallowNode> shallowNodes= new ArrayList<ShallowNode>();
 		_noncanonicalFormulas.accept(new TrieMap.Visitor<Formula, Void>() {
+			int _count= 0;
+			Stack<ShallowNode> _path= new Stack<ShallowNode>();
 			public boolean visit(CharSequence key, Node<Formula> node) {
-				addNonCanonicalRecord(key, node);
+				int id= ++_count;
+				if (node.depth() <= SPLIT_DEPTH) {
+					ShallowNode shallowNode= new ShallowNode(key.toString(), node.getChar(), node.getValue(), node.depth(), id);
+					shallowNodes.add(shallowNode);
+					_path.push(shallowNode);
+				}
 				return true;
 			}
-			public void leave(CharSequence key, Node<Formula> node) { /* do nothing */ }
+			public void leave(CharSequence key, Node<Formula> node) {
+				if (node.depth() <= SPLIT_DEPTH) {
+					ShallowNode shallowNode= _path.pop();
+					shallowNode.size= _count - shallowNode.id + 1;
+				}
+			}
 			public boolean isComplete() { return false; }
 			public Void getResult() { return null; }
 		});
-	}
-
-
-	private void addNonCanonicalRecord(CharSequence key, Node<Formula> node)  {
+		
+		HashMap<String, Integer> shallowIds= new HashMap<String, Integer>();
+		for (ShallowNode node : shallowNodes)
+			shallowIds.put(node.key, node.id);
+		
+		// write the nodes above the split depth, and export each subtree 
+		// at the split depth in a separate task 
+		ExecutorService executor= Executors.newFixedThreadPool(Math.max(1, _threadCount));
+		ArrayList<Future<Void>> tasks= new ArrayList<Future<Void>>();
+		NoncanonicalWriter writer= new NoncanonicalWriter(_indexConnection);
 		try {
-			char symbol= node.getChar();
-			int id= _nextNoncanonicalIndex++;
-			int parentId= 0;
-			Node<Formula> parent= node.getParent();
-			if (0 < parent.depth()) // if not root
-				parentId= _noncanonicalIdentifiers.get(parent);
+			for (final ShallowNode node : shallowNodes) {
+				Integer parentId= shallowIds.get(node.key.substring(0, node.key.length() - 1));
+				final int parentIdentifier= parentId == null ? 0 : parentId;
+				if (node.depth < SPLIT_DEPTH) {
+					writer.write(node.id, node.symbol, parentIdentifier, node.rule);
+				}
+				else {
+					tasks.add(executor.submit(new Callable<Void>() {
+						public Void call() throws SQLException {
+							exportSubtree(node, parentIdentifier);
+							return null;
+						}
+					}));
+				}
+			}
+			writer.flush();
 			
+			for (Future<Void> task : tasks)
+				task.get();
+		}
+		catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while exporting the rule index", x);
+		}
+		catch (ExecutionException x) {
+			throw new RuntimeException("Failed to export the rule index", x.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		System.out.println("Total non-canonical records created: "+_noncanonicalCount.get());
+	}
+	
+	/*
+	 * Exports the subtree rooted at the given node, numbering nodes in 
+	 * pre-order starting at the id of the given node. 
+	 * Only the ids of the ancestors of the current node are kept.
+	 */
+	private void exportSubtree(final ShallowNode root, final int rootParentId) throws SQLException {
+		Connection connection= RuleDatabase.createConnection(_indexURL);
+		final NoncanonicalWriter writer= new NoncanonicalWriter(connection);
+		try {
+			int nextId= _noncanonicalFormulas.accept(new TrieMap.Visitor<Formula, Integer>() {
+				int _nextId= root.id;
+				Stack<Integer> _path= new Stack<Integer>();
+				public boolean visit(CharSequence key, Node<Formula> node) {
+					int depth= node.depth();
+					if (depth < root.depth) 
+						return root.key.startsWith(key.toString());
+					if (depth == root.depth && !root.key.contentEquals(key))
+						return false;
+					
+					int id= _nextId++;
+					int parentId= _path.isEmpty() ? rootParentId : _path.lastElement();
+					try {
+						writer.write(id, node.getChar(), parentId, node.getValue());
+					}
+					catch (SQLException x) {
+						throw new RuntimeException(x);
+					}
+					_path.push(id);
+					return true;
+				}
+				public void leave(CharSequence key, Node<Formula> node) { 
+					if (root.depth <= node.depth() && key.toString().startsWith(root.key))
+						_path.pop();
+				}
+				public boolean isComplete() { return false; }
+				public Integer getResult() { return _nextId; }
+			});
+			if (nextId != root.id + root.size)
+				throw new IllegalStateException("Subtree "+root.key+" changed while being exported");
+			writer.flush();
+		}
+		finally {
+			writer.close();
+			connection.close();
+		}
+	}
+
+	/*
+	 * Writes records to the NONCANONICAL table in batches
+	 */
+	private class NoncanonicalWriter {
+		final Connection _connection;
+		final PreparedStatement _insert;
+		int _pending= 0;
+		
+		NoncanonicalWriter(Connection connection) throws SQLException {
+			_connection= connection;
+			_connection.setAutoCommit(false);
+			_insert= _connection.prepareStatement("INSERT INTO NONCANONICAL VALUES (?, ?, ?, ?)");
+		}
+		
+		void write(int id, char symbol, int parentId, Formula rule) throws SQLException {
 			int canonicalId= 0;
-			Formula rule= node.getValue();
 			if (rule != null) {
-				Formula canonical= _ruleDatabase.findCanonicalFormula(rule);
+				Formula canonical= _canonicalFormulas.get(rule.toString());
 				canonicalId= _canonicalIdentifiers.get(canonical.toString());
 			}
-			
-			String sql= "INSERT INTO NONCANONICAL VALUES (" + id+ ", '"+symbol+"',"+ parentId+ ","+ canonicalId+")";
-			Statement s = _indexConnection.createStatement();
-			s.execute(sql);
+			_insert.setInt(1, id);
+			_insert.setString(2, String.valueOf(symbol));
+			_insert.setInt(3, parentId);
+			_insert.setInt(4, canonicalId);
+			_insert.addBatch();
+			if (BATCH_SIZE <= ++_pending)
+				flush();
+		}
+		
+		void flush() throws SQLException {
+			if (_pending <= 0)
+				return;
+			_insert.executeBatch();
+			_connection.commit();
+			int total= _noncanonicalCount.addAndGet(_pending);
+			_pending= 0;
+			System.out.println("Total non-canonical records created: "+total);
+		}
+		
+		void close() throws SQLException {
+			_insert.close();
+		}
+	}
+	
+	
+	/**
+	 * Reads a rule profile and maps the rule ids in the profile to the 
+	 * trie keys of the rules in the existing index, that is, the index named 
+	 * by the termsat.rules.index system property, or the default index. 
+	 */
+	private Map<String, Long> readRuleProfile(String profileFile) throws IOException, SQLException {
+		HashMap<Integer, Long> hitsById= new HashMap<Integer, Long>();
+		BufferedReader reader= new BufferedReader(new FileReader(profileFile));
+		try {
+			String line;
+			while ((line= reader.readLine()) != null) {
+				line= line.trim();
+				if (line.length() <= 0)
+					continue;
+				String[] tokens= line.split("\\s+");
+				hitsById.put(Integer.parseInt(tokens[0]), Long.parseLong(tokens[1]));
+			}
+		}
+		finally {
+			reader.close();
+		}
+		
+		// the ids in the profile refer to the index used by the training run 
+		String profiledIndex= System.getProperty("termsat.rules.index");
+		String profiledURL= profiledIndex == null ? 
+				dbURL : 
+				RuleDatabase.protocol+profiledIndex+RuleDatabase.options;
+		HashMap<Integer, Character> symbols= new HashMap<Integer, Character>();
+		HashMap<Integer, Integer> parents= new HashMap<Integer, Integer>();
+		Connection existingIndex= RuleDatabase.createConnection(profiledURL);
+		try {
+			Statement s= existingIndex.createStatement();
+			ResultSet resultSet= s.executeQuery("SELECT ID, SYMBOL, PARENT FROM NONCANONICAL");
+			while (resultSet.next()) {
+				int id= resultSet.getInt(1);
+				symbols.put(id, resultSet.getString(2).charAt(0));
+				parents.put(id, resultSet.getInt(3));
+			}
+			resultSet.close();
 			s.close();
-			
-			_noncanonicalIdentifiers.put(node, id);
-			
-			System.out.println("Total non-canonical records created: "+_nextNoncanonicalIndex);
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
 		}
+		finally {
+			existingIndex.close();
+		}
+		
+		HashMap<String, Long> hitsByKey= new HashMap<String, Long>();
+		for (Map.Entry<Integer, Long> entry : hitsById.entrySet()) {
+			StringBuilder key= new StringBuilder();
+			for (Integer id= entry.getKey(); id != null && id != 0; id= parents.get(id)) 
+				key.append(symbols.get(id));
+			if (key.length() <= 0) {
+				System.out.println("Rule "+entry.getKey()+" is not in the existing index, ignored");
+				continue;
+			}
+			hitsByKey.put(key.reverse().toString(), entry.getValue());
+		}
+		return hitsByKey;
+	}
+	
+	/**
+	 * A copy of a node in the trie of noncanonical formulas, 
+	 * with the total number of rule applications of all rules below it.
+	 */
+	private static class ProfileNode {
+		final char symbol;
+		final Formula rule;
+		final List<ProfileNode> children= new ArrayList<ProfileNode>();
+		long hits;
+		ProfileNode(char symbol, Formula rule) {
+			this.symbol= symbol;
+			this.rule= rule;
+		}
+	}
+	
+	private static final Comparator<ProfileNode> HOTTEST_FIRST= new Comparator<ProfileNode>() {
+		public int compare(ProfileNode o1, ProfileNode o2) {
+			return o1.hits < o2.hits ? 1 : o1.hits == o2.hits ? 0 : -1;
+		}
+	};
+
+	private void populateNoncanonicalTableInProfileOrder(final Map<String, Long> ruleHits) throws SQLException {
+		final ProfileNode root= new ProfileNode((char)0, null);
+		_noncanonicalFormulas.accept(new TrieMap.Visitor<Formula, Void>() {
+			Stack<ProfileNode> _path= new Stack<ProfileNode>();
+			{ _path.push(root); }
+			public boolean visit(CharSequence key, Node<Formula> node) {
+				ProfileNode profileNode= new ProfileNode(node.getChar(), node.getValue());
+				if (node.getValue() != null) {
+					Long hits= ruleHits.get(key.toString());
+					if (hits != null)
+						profileNode.hits= hits;
+				}
+				_path.lastElement().children.add(profileNode);
+				_path.push(profileNode);
+				return true;
+			}
+			public void leave(CharSequence key, Node<Formula> node) { 
+				ProfileNode profileNode= _path.pop();
+				_path.lastElement().hits+= profileNode.hits;
+			}
+			public boolean isComplete() { return false; }
+			public Void getResult() { return null; }
+		});
+		
+		// Collections.sort is stable so unused rules keep their original order
+		NoncanonicalWriter writer= new NoncanonicalWriter(_indexConnection);
+		int nextId= 1;
+		for (ProfileNode child : sortChildren(root))
+			nextId= addProfiledRecords(writer, child, 0, nextId);
+		writer.flush();
+		writer.close();
+	}
+	
+	private List<ProfileNode> sortChildren(ProfileNode node) {
+		Collections.sort(node.children, HOTTEST_FIRST);
+		return node.children;
+	}
+	
+	/*
+	 * @return the next available id
+	 */
+	private int addProfiledRecords(NoncanonicalWriter writer, ProfileNode node, int parentId, int id) throws SQLException {
+		writer.write(id, node.symbol, parentId, node.rule);
+		int nextId= id + 1;
+		for (ProfileNode child : sortChildren(node)) 
+			nextId= addProfiledRecords(writer, child, id, nextId);
+		return nextId;
 	}
 
 }
@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.ruledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.googlecode.termsat.core.Formula;
+
+
+/**
+ * Loads all the reduction rules in a RuleDatabase, that is, every
+ * non-canonical formula paired with its canonical formula, without
+ * querying the database for each rule.
+ *
+ * The non-canonical formulas are streamed with one query, and the
+ * canonical formula for each is found with RuleDatabase.findCanonicalFormula,
+ * which is only called once for each truth table, so rules are paired with
+ * the same canonical formulas as when findCanonicalFormula is called for
+ * every rule.
+ *
+ * If a snapshot file is given then the rules are read from the snapshot
+ * when it exists and is up to date, and otherwise the snapshot is created
+ * as the rules are read from the database.
+ * A snapshot is a compact binary file that can be read sequentially,
+ * each canonical formula is written once and each rule refers to its
+ * canonical formula by index.
+ * The snapshot records the state of the database when it was created, 
+ * that is, the number of canonical and non-canonical formulas and the 
+ * largest id of each (see getDatabaseState), and a snapshot is not used if 
+ * the state of the database is different.
+ * Formulas are only ever added to a rule database, which always changes 
+ * its state, a change that removes and adds the same number of formulas 
+ * without changing the largest ids is not detected.
+ * The system property termsat.rules.snapshot names the snapshot used by
+ * the RuleIndexer and RuleCompletionGenerator programs.
+ */
+public class RuleLoader {
+
+	public static final String SNAPSHOT_PROPERTY= "termsat.rules.snapshot";
+
+	private static final int SNAPSHOT_MAGIC= 0x54535253; // 'TSRS'
+	private static final int SNAPSHOT_VERSION= 3;
+
+	// snapshot record types
+	private static final int END= 0;
+	private static final int CANONICAL= 1;
+	private static final int RULE= 2;
+
+	/**
+	 * An iterator over reduction rules that must be closed when no longer needed.
+	 */
+	public interface Cursor extends Iterator<ReductionRule> {
+		void close() throws IOException;
+	}
+
+	/**
+	 * @return a loader that uses the snapshot named by the termsat.rules.snapshot
+	 * system property, if any
+	 */
+	public static RuleLoader create(RuleDatabase database) {
+		String snapshot= System.getProperty(SNAPSHOT_PROPERTY);
+		return new RuleLoader(database, snapshot == null ? null : new File(snapshot));
+	}
+
+	private final RuleDatabase _database;
+	private final File _snapshot;
+
+	public RuleLoader(RuleDatabase database) {
+		this(database, null);
+	}
+
+	public RuleLoader(RuleDatabase database, File snapshot) {
+		_database= database;
+		_snapshot= snapshot;
+	}
+
+	public Cursor getAllReductionRules() throws SQLException, IOException {
+		if (_snapshot == null)
+			return new DatabaseCursor(null, null);
+
+		String databaseState= getDatabaseState(_database);
+		if (_snapshot.exists()) {
+			Cursor cursor= openSnapshot(_snapshot, databaseState);
+			if (cursor != null)
+				return cursor;
+			System.out.println("The rule snapshot "+_snapshot+" is out of date, it will be replaced");
+		}
+		return new DatabaseCursor(_snapshot, databaseState);
+	}
+
+	/**
+	 * @return the number of canonical and non-canonical formulas in the 
+	 * given database and the largest id of each, as text
+	 */
+	public static String getDatabaseState(RuleDatabase database) throws SQLException {
+		Statement s= database.getConnection().createStatement();
+		try {
+			ResultSet resultSet= s.executeQuery("SELECT CANONICAL, COUNT(*), MAX(ID) FROM FORMULA GROUP BY CANONICAL ORDER BY CANONICAL");
+			try {
+				StringBuilder state= new StringBuilder();
+				while (resultSet.next())
+					state.append(resultSet.getString(1)).append(':').append(resultSet.getLong(2)).append(':').append(resultSet.getLong(3)).append(';');
+				return state.toString();
+			}
+			finally {
+				resultSet.close();
+			}
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Writes the given rules to a snapshot, a canonical formula shared 
+	 * by several rules is only written once.
+	 * @param databaseState the state of the database that the rules were read from
+	 */
+	public static void writeSnapshot(File snapshot, String databaseState, Iterator<ReductionRule> rules) throws IOException {
+		SnapshotWriter writer= new SnapshotWriter(snapshot, databaseState);
+		try {
+			HashMap<String, Integer> canonicalIndexes= new HashMap<String, Integer>();
+			while (rules.hasNext()) {
+				ReductionRule rule= rules.next();
+				Integer index= canonicalIndexes.get(rule.reduction.toString());
+				if (index == null) {
+					index= canonicalIndexes.size();
+					canonicalIndexes.put(rule.reduction.toString(), index);
+					writer.writeCanonical(rule.reduction);
+				}
+				writer.writeRule(rule.formula, index);
+			}
+			writer.complete();
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the rules in the given snapshot, or null if the snapshot was 
+	 * created from a database in a different state 
+	 */
+	public static Cursor openSnapshot(File snapshot, String databaseState) throws IOException {
+		return SnapshotCursor.open(snapshot, databaseState);
+	}
+
+
+	/*
+	 * Writes a snapshot to a temporary file that is only moved into place 
+	 * when complete.
+	 */
+	private static class SnapshotWriter {
+		final File _snapshotFile;
+		final File _tempSnapshot;
+		DataOutputStream _out;
+
+		SnapshotWriter(File snapshot, String databaseState) throws IOException {
+			_snapshotFile= snapshot;
+			_tempSnapshot= new File(snapshot.getPath()+".tmp");
+			_out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_tempSnapshot), 1 << 16));
+			_out.writeInt(SNAPSHOT_MAGIC);
+			_out.writeInt(SNAPSHOT_VERSION);
+			_out.writeUTF(databaseState);
+		}
+
+		void writeCanonical(Formula canonical) throws IOException {
+			_out.writeByte(CANONICAL);
+			_out.writeUTF(canonical.toString());
+		}
+
+		void writeRule(Formula nonCanonical, int canonicalIndex) throws IOException {
+			_out.writeByte(RULE);
+			_out.writeUTF(nonCanonical.toString());
+			_out.writeInt(canonicalIndex);
+		}
+
+		void complete() throws IOException {
+			_out.writeByte(END);
+			_out.close();
+			_out= null;
+			if (_snapshotFile.exists() && !_snapshotFile.delete())
+				throw new IOException("Failed to delete "+_snapshotFile);
+			if (!_tempSnapshot.renameTo(_snapshotFile))
+				throw new IOException("Failed to rename "+_tempSnapshot+" to "+_snapshotFile);
+		}
+
+		/*
+		 * Discards the snapshot if it was not completed
+		 */
+		void close() throws IOException {
+			if (_out == null)
+				return;
+			_out.close();
+			_out= null;
+			_tempSnapshot.delete();
+		}
+	}
+
+
+	/*
+	 * Pairs non-canonical formulas from the database with the canonical
+	 * formula with the same truth table, and optionally copies the rules to
+	 * a new snapshot.
+	 */
+	private class DatabaseCursor implements Cursor {
+		final ArrayList<Formula> _canonicals= new ArrayList<Formula>();
+		final HashMap<TruthTable, Integer> _canonicalIndexes= new HashMap<TruthTable, Integer>();
+		final ResultIterator<Formula> _nonCanonicals;
+		final File _snapshotFile;
+		SnapshotWriter _snapshotWriter;
+
+		DatabaseCursor(File snapshot, String databaseState) throws SQLException, IOException {
+			_snapshotFile= snapshot;
+			if (snapshot != null)
+				_snapshotWriter= new SnapshotWriter(snapshot, databaseState);
+			_nonCanonicals= _database.getAllNonCanonicalFormulas();
+		}
+
+		public boolean hasNext() {
+			if (_nonCanonicals.hasNext())
+				return true;
+			try {
+				completeSnapshot();
+			}
+			catch (IOException x) {
+				throw new RuntimeException("Failed to write rule snapshot "+_snapshotFile, x);
+			}
+			return false;
+		}
+
+		public ReductionRule next() {
+			Formula nonCanonical= _nonCanonicals.next();
+			try {
+				TruthTable truthTable= TruthTables.getTruthTable(nonCanonical);
+				Integer index= _canonicalIndexes.get(truthTable);
+				if (index == null) {
+					Formula canonical= _database.findCanonicalFormula(nonCanonical);
+					if (canonical == null)
+						throw new IllegalStateException("No canonical formula found for "+nonCanonical);
+					index= _canonicals.size();
+					_canonicals.add(canonical);
+					_canonicalIndexes.put(truthTable, index);
+					if (_snapshotWriter != null)
+						_snapshotWriter.writeCanonical(canonical);
+				}
+				if (_snapshotWriter != null)
+					_snapshotWriter.writeRule(nonCanonical, index);
+				return new ReductionRule(nonCanonical, _canonicals.get(index));
+			}
+			catch (IOException x) {
+				throw new RuntimeException("Failed to write rule snapshot "+_snapshotFile, x);
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/*
+		 * Only a complete snapshot is moved into place
+		 */
+		private void completeSnapshot() throws IOException {
+			if (_snapshotWriter == null)
+				return;
+			_snapshotWriter.complete();
+			_snapshotWriter= null;
+		}
+
+		public void close() throws IOException {
+			_nonCanonicals.close();
+			if (_snapshotWriter != null) {
+				_snapshotWriter.close();
+				_snapshotWriter= null;
+			}
+		}
+	}
+
+
+	private static class SnapshotCursor implements Cursor {
+		final DataInputStream _in;
+		final ArrayList<Formula> _canonicals= new ArrayList<Formula>();
+		ReductionRule _next;
+
+		/**
+		 * @return null if the snapshot was not created from the database in its current state
+		 */
+		static SnapshotCursor open(File snapshot, String databaseState) throws IOException {
+			DataInputStream in= new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16));
+			try {
+				if (in.readInt() != SNAPSHOT_MAGIC)
+					throw new IOException(snapshot+" is not a rule snapshot");
+				if (in.readInt() != SNAPSHOT_VERSION || !in.readUTF().equals(databaseState)) {
+					in.close();
+					return null;
+				}
+				return new SnapshotCursor(in);
+			}
+			catch (IOException x) {
+				in.close();
+				throw x;
+			}
+		}
+
+		SnapshotCursor(DataInputStream in) throws IOException {
+			_in= in;
+			readNext();
+		}
+
+		private void readNext() throws IOException {
+			_next= null;
+			for (int type; (type= _in.readByte()) != END;) {
+				if (type == CANONICAL) {
+					_canonicals.add(Formula.createFormula(_in.readUTF()));
+				}
+				else if (type == RULE) {
+					Formula nonCanonical= Formula.createFormula(_in.readUTF());
+					_next= new ReductionRule(nonCanonical, _canonicals.get(_in.readInt()));
+					return;
+				}
+				else
+					throw new IOException("Corrupt rule snapshot, unknown record type "+type);
+			}
+		}
+
+		public boolean hasNext() {
+			return _next != null;
+		}
+
+		public ReductionRule next() {
+			if (_next == null)
+				throw new NoSuchElementException();
+			ReductionRule rule= _next;
+			try {
+				readNext();
+			}
+			catch (IOException x) {
+				throw new RuntimeException("Failed to read rule snapshot", x);
+			}
+			return rule;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close() throws IOException {
+			_in.close();
+		}
+	}
+}
@@ -43,6 +43,14 @@ namespace TermSAT.NandReduction
      * returning a root node that gets all its children nodes from the 
      * rule index database.
      * 
+     * The children of a node are loaded in order of their ids, and kept in that 
+     * order, so they are searched in the order in which the RuleIndexer 
+     * numbered them. 
+     * The index created by 'RuleIndexer -profile' numbers the children of 
+     * every node so that the most frequently applied rules come first, set 
+     * the system property termsat.rules.index to the folder of that index, 
+     * db/rules-index-profiled, to use it instead of the default index.
+     * 
      * @author Ted Stockwell
      * 
      * 
@@ -100,6 +108,8 @@ namespace TermSAT.NandReduction
 
 
 
+        public const String INDEX_PROPERTY = "termsat.rules.index";
+
         readonly Connection _connection;
         readonly HashMap<Integer, Formula> _canonicalFormulaCache = new HashMap<Integer, Formula>();
 
@@ -107,6 +117,14 @@ namespace TermSAT.NandReduction
         readonly PreparedStatement _selectChildren;
 
         public RuleRepository()
+        {
+            this(getIndexURL());
+        }
+
+        /**
+         * @param indexURL the URL of a rule index created by the RuleIndexer
+         */
+        public RuleRepository(String indexURL)
         {
             super();
             try
@@ -114,11 +132,11 @@ namespace TermSAT.NandReduction
                 // Load the JDBC driver
                 Class.forName(driver);
                 Properties props = new Properties();
-                _connection = DriverManager.getConnection(dbURL, props);
+                _connection = DriverManager.getConnection(indexURL, props);
 
                 _selectCanonicalFormula = _connection.prepareStatement("SELECT CANONICAL.FORMULA FROM CANONICAL WHERE CANONICAL.ID = ?");
 
-                _selectChildren = _connection.prepareStatement("SELECT * FROM NONCANONICAL WHERE PARENT = ?");
+                _selectChildren = _connection.prepareStatement("SELECT * FROM NONCANONICAL WHERE PARENT = ? ORDER BY ID");
 
             }
             catch (ClassNotFoundException e)
@@ -131,6 +149,17 @@ namespace TermSAT.NandReduction
             }
         }
 
+        /*
+         * The index named by the termsat.rules.index system property, or the default index 
+         */
+        private static String getIndexURL()
+        {
+            String indexFolder = System.getProperty(INDEX_PROPERTY);
+            if (indexFolder == null)
+                return dbURL;
+            return RuleDatabase.protocol + indexFolder + RuleDatabase.options;
+        }
+
         override protected TrieMap.NodeImpl<Formula> createRoot()
         {
             return new RepositoryNode();
@@ -165,7 +194,8 @@ namespace TermSAT.NandReduction
                     }
                     nodes.add(rn);
                 }
-                Map<Character, TrieMap.NodeImpl<Formula>> children = new HashMap<Character, TrieMap.NodeImpl<Formula>>();
+                // keep the children in the order in which they were numbered
+                Map<Character, TrieMap.NodeImpl<Formula>> children = new LinkedHashMap<Character, TrieMap.NodeImpl<Formula>>();
                 foreach (RepositoryNode rn in nodes)
                     children.put(rn.getCharacter(), rn);
                 return children;
@@ -223,6 +253,7 @@ namespace TermSAT.NandReduction
                 return null;
             NodeInfo info = matches.get(0);
             RepositoryNode rn = (RepositoryNode)info.node;
+            RuleMetrics.getInstance().ruleApplied(rn._id);
             Formula canonicalFormula = getCanonicalFormula(rn._canonicalID);
             return Formula.createInstance(canonicalFormula, info.substitutions);
         }
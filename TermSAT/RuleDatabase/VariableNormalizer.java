@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.ruledb;
+
+import java.util.HashMap;
+
+
+/**
+ * Renames the variables in a formula so that variables first appear
+ * in ascending order, starting with 1.
+ * For instance, '*3.-1.' is normalized to '*1.-2.'.
+ *
+ * Two formulas that are just variable renamings of each other have the
+ * same normalized form.
+ * A formula is a substitution instance of a rule if and only if its
+ * renamings are, and the renamings of a canonical formula are canonical,
+ * so the RuleGenerator only needs to fully process one formula from
+ * each class of renamings.
+ *
+ * Works on the textual form of a formula, where a variable is written as
+ * its number followed by a '.'.
+ */
+public class VariableNormalizer {
+
+	public static String normalize(CharSequence formula) {
+		StringBuilder normalized= new StringBuilder(formula.length());
+		HashMap<String, Integer> renamings= new HashMap<String, Integer>();
+		int length= formula.length();
+		for (int i= 0; i < length;) {
+			char c= formula.charAt(i);
+			if (!Character.isDigit(c)) {
+				normalized.append(c);
+				i++;
+				continue;
+			}
+
+			int end= i;
+			while (end < length && Character.isDigit(formula.charAt(end)))
+				end++;
+			String variable= formula.subSequence(i, end).toString();
+			Integer number= renamings.get(variable);
+			if (number == null) {
+				number= renamings.size() + 1;
+				renamings.put(variable, number);
+			}
+			normalized.append(number);
+			i= end;
+		}
+		return normalized.toString();
+	}
+}
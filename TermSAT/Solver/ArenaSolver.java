@@ -0,0 +1,285 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.solver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.googlecode.termsat.core.Formula;
+
+
+/**
+ * A Solver that reduces formulas that are stored in a FormulaArena.
+ *
+ * Formulas are reduced bottom-up the same way as the BottomUpSolver,
+ * including the checks that keep same length reductions from looping.
+ * Normal forms are recorded in the arena, and since identical subformulas
+ * are the same node, every distinct subformula is reduced once.
+ * Only the reduction stack, the formulas that are still being reduced,
+ * and the formulas being matched are on the heap.
+ *
+ * The RuleRepository matches formulas that are on the heap, so a node is
+ * matched by copying the top of its formula to the heap, down to
+ * windowDepth levels.
+ * In this window every subformula that is deeper than windowDepth is
+ * replaced with a placeholder variable, numbered above the largest variable
+ * in the arena. A subformula is either copied or replaced everywhere in
+ * the window, so identical subformulas are still identical.
+ * The formula produced by a rule is then added to the arena with the
+ * placeholders replaced by the subformulas they stand for.
+ * A rule whose formula is deeper than windowDepth is never matched, so
+ * windowDepth should be at least the depth of the deepest rule.
+ * The window is also limited to about windowNodes distinct nodes, nodes are 
+ * copied breadth first and once the limit is reached the remaining nodes 
+ * are replaced with placeholders, so a deep rule may not be matched in a 
+ * wide formula.
+ * A rule that isn't matched leaves a formula less reduced, it never makes it wrong.
+ *
+ * An ArenaSolver is not thread-safe.
+ */
+public class ArenaSolver extends Solver {
+
+	public static final int DEFAULT_WINDOW_DEPTH= 16;
+	public static final int DEFAULT_WINDOW_NODES= 1 << 10;
+
+	private final RuleRepository _rules;
+	private final FormulaArena _arena;
+	private final int _windowDepth;
+	private final int _windowNodes;
+	// nodes that have been rewritten, by normalizing their children or
+	// by a rule, and whose rewrite is still being reduced
+	private final HashMap<Long, Long> _rewrites= new HashMap<Long, Long>();
+	private final RuleMetrics _metrics= RuleMetrics.getInstance();
+
+	public ArenaSolver(RuleRepository rules, FormulaArena arena) {
+		this(rules, arena, DEFAULT_WINDOW_DEPTH);
+	}
+
+	public ArenaSolver(RuleRepository rules, FormulaArena arena, int windowDepth) {
+		this(rules, arena, windowDepth, DEFAULT_WINDOW_NODES);
+	}
+
+	public ArenaSolver(RuleRepository rules, FormulaArena arena, int windowDepth, int windowNodes) {
+		super(rules);
+		_rules= rules;
+		_arena= arena;
+		_windowDepth= windowDepth;
+		_windowNodes= windowNodes;
+	}
+
+	public FormulaArena getArena() {
+		return _arena;
+	}
+
+	/**
+	 * Adds the given formula to the arena, reduces it, and copies the
+	 * result back to the heap.
+	 * Nodes are never removed from the arena, so every call adds to it, 
+	 * and the copying takes time proportional to the length of the formulas. 
+	 * To reduce a formula that is built up over many calls, such as a CNF 
+	 * problem, keep it in the arena and use reduce(long) instead, 
+	 * as CNFFile.readAndReduce does.
+	 */
+	@Override
+	public Formula reduce(Formula formula) {
+		return _arena.getFormula(reduce(_arena.add(formula)));
+	}
+
+	/**
+	 * @return the normal form of the given node
+	 */
+	public long reduce(long node) {
+		_rewrites.clear();
+
+		FormulaArena.LongStack stack= new FormulaArena.LongStack();
+		stack.push(node);
+		while (!stack.isEmpty()) {
+			long top= stack.peek();
+			if (_arena.getNormalForm(top) != 0) {
+				stack.pop();
+				continue;
+			}
+
+			// a node that was rewritten is done when its rewrite is
+			Long rewrite= _rewrites.get(top);
+			if (rewrite != null) {
+				long normalForm= _arena.getNormalForm(rewrite);
+				if (normalForm == 0) {
+					stack.push(rewrite);
+					continue;
+				}
+				_rewrites.remove(top);
+				_arena.setNormalForm(top, normalForm);
+				stack.pop();
+				continue;
+			}
+
+			// normalize the children first
+			long rebuilt= top;
+			int tag= _arena.getTag(top);
+			if (tag == FormulaArena.NEGATION) {
+				long child= _arena.getLeft(top);
+				long normalChild= _arena.getNormalForm(child);
+				if (normalChild == 0) {
+					stack.push(child);
+					continue;
+				}
+				rebuilt= _arena.negation(normalChild);
+			}
+			else if (tag == FormulaArena.IMPLICATION) {
+				long antecedent= _arena.getLeft(top);
+				long consequent= _arena.getRight(top);
+				long normalAntecedent= _arena.getNormalForm(antecedent);
+				long normalConsequent= _arena.getNormalForm(consequent);
+				if (normalAntecedent == 0 || normalConsequent == 0) {
+					if (normalConsequent == 0)
+						stack.push(consequent);
+					if (normalAntecedent == 0)
+						stack.push(antecedent);
+					continue;
+				}
+				rebuilt= _arena.implication(normalAntecedent, normalConsequent);
+			}
+			if (rebuilt != top) {
+				// the children of rebuilt are in normal form, so if it's still
+				// being reduced then it was reduced by a rule that leads back here
+				if (_rewrites.remove(rebuilt) != null)
+					_arena.setNormalForm(rebuilt, rebuilt);
+				_rewrites.put(top, rebuilt);
+				stack.push(rebuilt);
+				continue;
+			}
+
+			// then match only at the root
+			long reduction= findReducedNode(top);
+			if (reduction == 0 || !isProgress(top, reduction)) {
+				_arena.setNormalForm(top, top);
+				stack.pop();
+			}
+			else {
+				_rewrites.put(top, reduction);
+				stack.push(reduction);
+			}
+		}
+		return _arena.getNormalForm(node);
+	}
+
+	/*
+	 * A reduction makes progress if it's shorter, or if it's the same length
+	 * and doesn't lead back to a node that is still being reduced.
+	 */
+	private boolean isProgress(long node, long reduction) {
+		long length= _arena.getLength(node);
+		long reducedLength= _arena.getLength(reduction);
+		if (reducedLength != length)
+			return reducedLength < length;
+		return reduction != node && !_rewrites.containsKey(reduction);
+	}
+
+	/*
+	 * @return the node produced by the first rule that matches the given node, or 0
+	 */
+	private long findReducedNode(long node) {
+		HashMap<Integer, Long> placeholders= new HashMap<Integer, Long>();
+		Formula reduction= _rules.findReducedFormula(getWindow(node, placeholders));
+		_metrics.matchAttempted(reduction != null);
+		if (reduction == null)
+			return 0;
+		return _arena.add(reduction, placeholders);
+	}
+
+	/*
+	 * Copies the top of the given node's formula to the heap.
+	 * Nodes are copied if they can be reached in less than windowDepth
+	 * steps, deeper nodes are replaced with placeholder variables.
+	 * Once windowNodes nodes have been found the nodes that are left are 
+	 * also replaced with placeholders.
+	 */
+	private Formula getWindow(long node, HashMap<Integer, Long> placeholders) {
+		// the least depth of each node in the window, breadth first
+		HashMap<Long, Integer> depths= new HashMap<Long, Integer>();
+		ArrayList<Long> queue= new ArrayList<Long>();
+		depths.put(node, 0);
+		queue.add(node);
+		for (int i= 0; i < queue.size(); i++) {
+			long next= queue.get(i);
+			int depth= depths.get(next);
+			int tag= _arena.getTag(next);
+			if (_windowDepth <= depth || (tag != FormulaArena.NEGATION && tag != FormulaArena.IMPLICATION))
+				continue;
+			if (_windowNodes <= depths.size()) {
+				depths.put(next, _windowDepth); // a placeholder
+				continue;
+			}
+			long left= _arena.getLeft(next);
+			if (!depths.containsKey(left)) {
+				depths.put(left, depth + 1);
+				queue.add(left);
+			}
+			if (tag == FormulaArena.IMPLICATION) {
+				long right= _arena.getRight(next);
+				if (!depths.containsKey(right)) {
+					depths.put(right, depth + 1);
+					queue.add(right);
+				}
+			}
+		}
+
+		HashMap<Long, Formula> formulas= new HashMap<Long, Formula>();
+		FormulaArena.LongStack stack= new FormulaArena.LongStack();
+		stack.push(node);
+		while (!stack.isEmpty()) {
+			long top= stack.peek();
+			if (formulas.containsKey(top)) {
+				stack.pop();
+				continue;
+			}
+			int tag= _arena.getTag(top);
+			boolean compound= tag == FormulaArena.NEGATION || tag == FormulaArena.IMPLICATION;
+			if (compound && _windowDepth <= depths.get(top)) {
+				int number= _arena.getMaxVariable() + placeholders.size() + 1;
+				placeholders.put(number, top);
+				formulas.put(top, Formula.createFormula(number+"."));
+			}
+			else if (tag == FormulaArena.NEGATION) {
+				Formula child= formulas.get(_arena.getLeft(top));
+				if (child == null) {
+					stack.push(_arena.getLeft(top));
+					continue;
+				}
+				formulas.put(top, Formula.createNegation(child));
+			}
+			else if (tag == FormulaArena.IMPLICATION) {
+				Formula antecedent= formulas.get(_arena.getLeft(top));
+				Formula consequent= formulas.get(_arena.getRight(top));
+				if (antecedent == null || consequent == null) {
+					if (consequent == null)
+						stack.push(_arena.getRight(top));
+					if (antecedent == null)
+						stack.push(_arena.getLeft(top));
+					continue;
+				}
+				formulas.put(top, Formula.createImplication(antecedent, consequent));
+			}
+			else
+				formulas.put(top, _arena.getLeafFormula(top));
+			stack.pop();
+		}
+		return formulas.get(node);
+	}
+}
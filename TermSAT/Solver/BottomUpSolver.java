@@ -0,0 +1,208 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.solver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.googlecode.termsat.core.Formula;
+import com.googlecode.termsat.core.Implication;
+import com.googlecode.termsat.core.Negation;
+
+
+/**
+ * A Solver that reduces formulas bottom-up.
+ *
+ * The children of a formula are reduced to their normal form first, then
+ * the formula is rebuilt from its reduced children and the reduction
+ * rules are only matched at the root of the rebuilt formula.
+ * If a rule matches then the reduced formula is normalized the same way,
+ * since the canonical side of a rule may create new redexes.
+ * Normal forms are memoized, so every distinct subformula is reduced once,
+ * even across calls, until the memo is trimmed (see MAX_MEMO_SIZE). This matters to CNFFile.readAndReduce, which reduces
+ * the whole accumulated formula after every clause, most of which was
+ * already reduced by the previous call.
+ *
+ * The results are the same as those of Solver.reduce only if the rule set
+ * is confluent and terminating, that is, only if every formula has a
+ * single normal form.
+ * That is not checked.
+ * Rules whose canonical formula is as long as the rule's formula are
+ * conditional, they only apply when the result is simpler (see RuleGenerator),
+ * but the RuleRepository doesn't check that condition.
+ * So a reduction that is not shorter than the formula it reduces is only
+ * accepted if it doesn't lead back to a formula that is still being reduced,
+ * otherwise the formula is taken to be in normal form.
+ * Likewise, if rebuilding a formula from its reduced children leads back to
+ * a formula that is still being reduced, then that formula is taken to be
+ * in normal form.
+ * Reduction thereby always terminates.
+ * With such rules the normal form found for a formula can depend on which 
+ * formulas were still being reduced, and so on what was in the memo.
+ *
+ * Formulas are traversed with an explicit stack, the formulas created from
+ * large CNF files are nested far too deeply to traverse recursively.
+ */
+public class BottomUpSolver extends Solver {
+
+	/**
+	 * The memo is trimmed when it holds more than this many formulas, or
+	 * more than twice as many as were kept the last time it was trimmed.
+	 * Only the normal forms that the formulas still being reduced are 
+	 * waiting for are kept, so the memo stays bounded within a call, 
+	 * in proportion to the depth of the formula.
+	 */
+	public static final int MAX_MEMO_SIZE= 1 << 20;
+
+	private final RuleRepository _rules;
+	private final HashMap<Formula, Formula> _normalForms= new HashMap<Formula, Formula>();
+	// formulas that have been rewritten, by normalizing their children or 
+	// by a rule, and whose rewrite is still being reduced 
+	private final HashMap<Formula, Formula> _rewrites= new HashMap<Formula, Formula>();
+	private final RuleMetrics _metrics= RuleMetrics.getInstance();
+	private int _memoLimit= MAX_MEMO_SIZE;
+
+	public BottomUpSolver(RuleRepository rules) {
+		super(rules);
+		_rules= rules;
+	}
+
+	@Override
+	public Formula reduce(Formula formula) {
+		_rewrites.clear();
+
+		ArrayList<Formula> stack= new ArrayList<Formula>();
+		stack.add(formula);
+		while (!stack.isEmpty()) {
+			if (_memoLimit < _normalForms.size())
+				trimMemo(stack);
+
+			Formula top= stack.get(stack.size() - 1);
+			if (_normalForms.containsKey(top)) {
+				stack.remove(stack.size() - 1);
+				continue;
+			}
+
+			// a formula that was rewritten is done when its rewrite is
+			Formula rewrite= _rewrites.get(top);
+			if (rewrite != null) {
+				Formula normalForm= _normalForms.get(rewrite);
+				if (normalForm == null) {
+					stack.add(rewrite);
+					continue;
+				}
+				_rewrites.remove(top);
+				_normalForms.put(top, normalForm);
+				stack.remove(stack.size() - 1);
+				continue;
+			}
+
+			// normalize the children first
+			Formula rebuilt= top;
+			if (top instanceof Negation) {
+				Formula child= ((Negation)top).getChild();
+				Formula normalChild= _normalForms.get(child);
+				if (normalChild == null) {
+					stack.add(child);
+					continue;
+				}
+				if (normalChild != child)
+					rebuilt= Formula.createNegation(normalChild);
+			}
+			else if (top instanceof Implication) {
+				Formula antecedent= ((Implication)top).getAntecedent();
+				Formula consequent= ((Implication)top).getConsequent();
+				Formula normalAntecedent= _normalForms.get(antecedent);
+				Formula normalConsequent= _normalForms.get(consequent);
+				if (normalAntecedent == null || normalConsequent == null) {
+					if (normalConsequent == null)
+						stack.add(consequent);
+					if (normalAntecedent == null)
+						stack.add(antecedent);
+					continue;
+				}
+				if (normalAntecedent != antecedent || normalConsequent != consequent)
+					rebuilt= Formula.createImplication(normalAntecedent, normalConsequent);
+			}
+			if (rebuilt != top && !rebuilt.equals(top)) {
+				// the children of rebuilt are in normal form, so if it's still 
+				// being reduced then it was reduced by a rule that leads back here 
+				if (_rewrites.remove(rebuilt) != null)
+					_normalForms.put(rebuilt, rebuilt);
+				_rewrites.put(top, rebuilt);
+				stack.add(rebuilt);
+				continue;
+			}
+
+			// then match only at the root
+			Formula reduction= _rules.findReducedFormula(top);
+			_metrics.matchAttempted(reduction != null);
+			if (reduction == null || !isProgress(top, reduction)) {
+				_normalForms.put(top, top);
+				stack.remove(stack.size() - 1);
+			}
+			else {
+				_rewrites.put(top, reduction);
+				stack.add(reduction);
+			}
+		}
+		return _normalForms.get(formula);
+	}
+
+	/*
+	 * Removes every normal form except those that the formulas on the 
+	 * stack are waiting for, their children's and their rewrites'.
+	 */
+	private void trimMemo(ArrayList<Formula> stack) {
+		HashMap<Formula, Formula> kept= new HashMap<Formula, Formula>();
+		for (Formula pending : stack) {
+			keepNormalForm(kept, pending);
+			if (pending instanceof Negation) {
+				keepNormalForm(kept, ((Negation)pending).getChild());
+			}
+			else if (pending instanceof Implication) {
+				keepNormalForm(kept, ((Implication)pending).getAntecedent());
+				keepNormalForm(kept, ((Implication)pending).getConsequent());
+			}
+			Formula rewrite= _rewrites.get(pending);
+			if (rewrite != null)
+				keepNormalForm(kept, rewrite);
+		}
+		_normalForms.clear();
+		_normalForms.putAll(kept);
+		_memoLimit= Math.max(MAX_MEMO_SIZE, 2 * kept.size());
+	}
+
+	private void keepNormalForm(HashMap<Formula, Formula> kept, Formula formula) {
+		Formula normalForm= _normalForms.get(formula);
+		if (normalForm != null)
+			kept.put(formula, normalForm);
+	}
+
+	/*
+	 * A reduction makes progress if it's shorter, or if it's the same length 
+	 * and doesn't lead back to a formula that is still being reduced.
+	 */
+	private boolean isProgress(Formula formula, Formula reduction) {
+		int length= formula.length();
+		int reducedLength= reduction.length();
+		if (reducedLength != length)
+			return reducedLength < length;
+		return !reduction.equals(formula) && !_rewrites.containsKey(reduction);
+	}
+}
@@ -0,0 +1,575 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.solver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.googlecode.termsat.core.Constant;
+import com.googlecode.termsat.core.Formula;
+
+
+/**
+ * Runs the solver against every CNF file in a folder and records, for each file,
+ * the result, the elapsed time, the peak heap usage, the time spent in
+ * garbage collection, the length of the longest formula reduced, and the
+ * number of calls to Solver.reduce.
+ *
+ * Usage:
+ * 	CNFBenchmark <folder>
+ * 		[-engine <name>]		the reduction engine to use, topdown (Solver),
+ * 								bottomup (BottomUpSolver), or arena (ArenaSolver,
+ * 								which reduces in a FormulaArena), topdown by default
+ * 		[-budget <seconds>] 	the maximum time allowed for each file, 600 by default
+ * 		[-output <file>]		where to write results, as JSON if the file name ends
+ * 								with .json, otherwise as CSV
+ * 		[-baseline <file>]		CSV results from a previous run to compare against
+ * 		[-threshold <percent>]	how much slower than the baseline a file may be
+ * 								before it's considered a regression, 10 by default
+ * 		[-compareEngines]		run every file with both engines and compare
+ * 								the reduced formulas, see compareEngines
+ *
+ * Files with the extensions .cnf, .txt, .cnf.gz, and .cnf.xz are read,
+ * in order of file name.
+ * The peak heap usage is the largest total heap usage seen while sampling
+ * the heap every HEAP_SAMPLE_MILLIS milliseconds, so short lived peaks may
+ * be missed.
+ * The memory used by the arena engine's FormulaArena is not on the heap,
+ * and is not included, but its reduced formula is copied to the heap 
+ * when the run is done (see CNFFile.getFormula), which is included.
+ * The peak formula length and the number of reduce calls are collected by
+ * RuleMetrics, they are reported as -1 when metrics are disabled with
+ * -Dtermsat.metrics=false.
+ * When the system property termsat.metrics.profile is set, the rule 
+ * application counts of all the files are added up and written to that 
+ * file at the end of the run, see RuleMetrics.
+ * A run that exceeds its budget is interrupted, and if it doesn't stop
+ * the remaining files are not run, since the measurements would include
+ * the work of the abandoned run, and are reported as SKIPPED.
+ * The program exits with status 1 if any file regressed, that is, if it
+ * is slower than the baseline by more than the threshold or if its
+ * result differs from the baseline.
+ *
+ * To check that the engines reduce every file to the same formula run
+ * 	CNFBenchmark Tests -compareEngines
+ * The program then exits with status 1 if the formulas differ for any file.
+ * To compare the engines' timings, write the results of one engine to a
+ * CSV file and use it as the baseline for a run of the other engine, for example:
+ * 	CNFBenchmark Tests -engine topdown -output topdown.csv
+ * 	CNFBenchmark Tests -engine bottomup -baseline topdown.csv
+ */
+public class CNFBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1)
+			usage();
+		File folder= new File(args[0]);
+		String engine= TOPDOWN;
+		long budget= 600;
+		File output= null;
+		File baseline= null;
+		double threshold= 10;
+		boolean compareEngines= false;
+		for (int a= 1; a < args.length; a++) {
+			if (args[a].equals("-engine") && a+1 < args.length) {
+				engine= args[++a];
+				if (!engine.equals(TOPDOWN) && !engine.equals(BOTTOMUP) && !engine.equals(ARENA))
+					usage();
+			}
+			else if (args[a].equals("-budget") && a+1 < args.length) {
+				budget= Long.parseLong(args[++a]);
+			}
+			else if (args[a].equals("-output") && a+1 < args.length) {
+				output= new File(args[++a]);
+			}
+			else if (args[a].equals("-baseline") && a+1 < args.length) {
+				baseline= new File(args[++a]);
+			}
+			else if (args[a].equals("-threshold") && a+1 < args.length) {
+				threshold= Double.parseDouble(args[++a]);
+			}
+			else if (args[a].equals("-compareEngines")) {
+				compareEngines= true;
+			}
+			else
+				usage();
+		}
+
+		if (compareEngines) {
+			int differences= compareEngines(folder, budget * 1000);
+			if (0 < differences) {
+				System.out.println(differences+" difference(s) found");
+				System.exit(1);
+			}
+			System.out.println("No differences found");
+			return;
+		}
+
+		CNFBenchmark benchmark= new CNFBenchmark(engine, budget * 1000);
+		List<Result> results= benchmark.runAll(folder);
+
+		if (output != null) {
+			if (output.getName().endsWith(".json")) {
+				writeJSON(results, output);
+			}
+			else
+				writeCSV(results, output);
+		}
+
+		if (baseline != null) {
+			int regressions= compare(results, readCSV(baseline), threshold);
+			if (0 < regressions) {
+				System.out.println(regressions+" regression(s) found");
+				System.exit(1);
+			}
+			System.out.println("No regressions found");
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: CNFBenchmark <folder> [-engine topdown|bottomup|arena] [-budget <seconds>] [-output <file>] "+
+				"[-baseline <file>] [-threshold <percent>] [-compareEngines]");
+		System.exit(2);
+	}
+
+
+	public static final String TOPDOWN= "topdown";
+	public static final String BOTTOMUP= "bottomup";
+	public static final String ARENA= "arena";
+
+	public static final String TIMEOUT= "TIMEOUT";
+	public static final String ERROR= "ERROR";
+	public static final String UNKNOWN= "UNKNOWN";
+	public static final String SKIPPED= "SKIPPED";
+
+	/**
+	 * How often the heap usage is sampled
+	 */
+	public static final long HEAP_SAMPLE_MILLIS= 10;
+
+	/**
+	 * How long a run that exceeded its budget is given to stop
+	 */
+	private static final long STOP_MILLIS= 10000;
+
+	/**
+	 * The measurements for one file
+	 */
+	public static class Result {
+		public String file;
+		public String result;
+		public long timeMillis;
+		public long peakHeapBytes;
+		public long gcMillis;
+		public long peakFormulaLength;
+		public long reduceCalls;
+		/**
+		 * The reduced formula, or null if the run didn't finish.
+		 * Not written to CSV or JSON files.
+		 */
+		public Formula formula;
+	}
+
+	private static final String[] COLUMNS= new String[] {
+		"file", "result", "timeMillis", "peakHeapBytes", "gcMillis", "peakFormulaLength", "reduceCalls"
+	};
+
+	private final String _engine;
+	private final long _budgetMillis;
+	private RuleRepository _rules;
+	// a run that didn't stop after exceeding its budget
+	private Thread _abandonedRun;
+
+	public CNFBenchmark(long budgetMillis) {
+		this(TOPDOWN, budgetMillis);
+	}
+
+	public CNFBenchmark(String engine, long budgetMillis) {
+		_engine= engine;
+		_budgetMillis= budgetMillis;
+		if (!RuleMetrics.isEnabled())
+			System.out.println("WARNING: metrics are disabled, peak formula length and reduce calls are reported as -1");
+	}
+
+	/**
+	 * Creates the solver used for each file.
+	 * All solvers share one RuleRepository, a RuleRepository holds a 
+	 * database connection that is never released.
+	 */
+	protected Solver createSolver() throws Exception {
+		if (_rules == null)
+			_rules= new RuleRepository();
+		if (BOTTOMUP.equals(_engine))
+			return new BottomUpSolver(_rules);
+		if (ARENA.equals(_engine))
+			return new ArenaSolver(_rules, new FormulaArena());
+		return new Solver(_rules);
+	}
+
+	/**
+	 * @return the CNF files in the given folder, in order of file name
+	 */
+	public static List<File> listCNFFiles(File folder) throws IOException {
+		File[] files= folder.listFiles();
+		if (files == null)
+			throw new IOException(folder+" is not a folder");
+		Arrays.sort(files);
+
+		ArrayList<File> cnfFiles= new ArrayList<File>();
+		for (File file : files) {
+			if (file.isFile() && file.getName().matches(".*\\.(cnf|txt|cnf\\.gz|cnf\\.xz)"))
+				cnfFiles.add(file);
+		}
+		return cnfFiles;
+	}
+
+	public List<Result> runAll(File folder) throws Exception {
+		ArrayList<Result> results= new ArrayList<Result>();
+		// the metrics are reset for every file, so the profile is collected here 
+		TreeMap<Integer, Long> ruleProfile= new TreeMap<Integer, Long>();
+		for (File file : listCNFFiles(folder)) {
+			Result result= run(file);
+			results.add(result);
+			print(result);
+			if (!SKIPPED.equals(result.result)) {
+				for (Map.Entry<Integer, Long> entry : RuleMetrics.getInstance().getRuleApplicationCounts().entrySet()) {
+					Long count= ruleProfile.get(entry.getKey());
+					ruleProfile.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+				}
+			}
+		}
+		if (RuleMetrics.getProfileFile() != null)
+			RuleMetrics.writeRuleProfile(RuleMetrics.getProfileFile(), ruleProfile);
+		return results;
+	}
+
+	private static void print(Result result) {
+		System.out.println(result.file+": "+result.result+" in "+result.timeMillis+"ms, "+
+				"peak heap "+(result.peakHeapBytes >> 20)+"MB, gc "+result.gcMillis+"ms, "+
+				"peak formula length "+result.peakFormulaLength+", "+result.reduceCalls+" reduce calls");
+	}
+
+	/**
+	 * Reduces every file in the given folder with both engines and compares 
+	 * the reduced formulas.
+	 * A file that either engine fails to reduce within the budget counts 
+	 * as a difference, since the formulas could not be compared.
+	 * @return the number of files for which the engines' formulas differ
+	 */
+	public static int compareEngines(File folder, long budgetMillis) throws Exception {
+		CNFBenchmark topDown= new CNFBenchmark(TOPDOWN, budgetMillis);
+		CNFBenchmark bottomUp= new CNFBenchmark(BOTTOMUP, budgetMillis);
+		int differences= 0;
+		for (File file : listCNFFiles(folder)) {
+			Result expected= topDown.run(file);
+			Result actual= bottomUp.run(file);
+			String status= "same formula";
+			if (expected.formula == null || actual.formula == null) {
+				status= "NOT COMPARED, "+TOPDOWN+" "+expected.result+", "+BOTTOMUP+" "+actual.result;
+				differences++;
+			}
+			else if (!expected.formula.equals(actual.formula)) {
+				status= "DIFFERENT, "+TOPDOWN+" length "+expected.formula.length()+", "+
+						BOTTOMUP+" length "+actual.formula.length();
+				differences++;
+			}
+			System.out.println(file.getName()+": "+TOPDOWN+" "+expected.timeMillis+"ms, "+
+					BOTTOMUP+" "+actual.timeMillis+"ms, "+status);
+		}
+		return differences;
+	}
+
+	/**
+	 * @return the measurements for the given file, or a SKIPPED result if
+	 * 	a previous run exceeded its budget and could not be stopped
+	 */
+	public Result run(final File file) throws Exception {
+		Result result= new Result();
+		result.file= file.getName();
+		if (_abandonedRun != null && _abandonedRun.isAlive()) {
+			result.result= SKIPPED;
+			result.peakFormulaLength= -1;
+			result.reduceCalls= -1;
+			return result;
+		}
+
+		final Solver solver= createSolver();
+		RuleMetrics metrics= RuleMetrics.getInstance();
+
+		System.gc();
+		metrics.reset();
+		long gcStart= getCollectionTime();
+		HeapSampler heapSampler= new HeapSampler();
+		heapSampler.start();
+
+		// run on a separate daemon thread so that a run that ignores
+		// interruption cannot keep the benchmark from finishing
+		FutureTask<Formula> task= new FutureTask<Formula>(new Callable<Formula>() {
+			public Formula call() throws Exception {
+				InputStream inputStream= new FileInputStream(file);
+				try {
+					return CNFFile.readAndReduce(inputStream, solver).getFormula();
+				}
+				finally {
+					inputStream.close();
+					if (solver instanceof ArenaSolver)
+						((ArenaSolver)solver).getArena().close();
+				}
+			}
+		});
+		Thread thread= new Thread(task, "CNFBenchmark "+file.getName());
+		thread.setDaemon(true);
+
+		long start= System.currentTimeMillis();
+		long end;
+		thread.start();
+		try {
+			result.formula= task.get(_budgetMillis, TimeUnit.MILLISECONDS);
+			end= System.currentTimeMillis();
+			result.result= resultOf(result.formula);
+		}
+		catch (TimeoutException x) {
+			// the time given to stop is not part of the run
+			end= System.currentTimeMillis();
+			task.cancel(true);
+			result.result= TIMEOUT;
+			// CNFFile checks for interruption between clauses, give it a chance
+			// to stop before measuring the next file
+			thread.join(STOP_MILLIS);
+			if (thread.isAlive()) {
+				_abandonedRun= thread;
+				System.out.println("WARNING: "+file.getName()+" did not stop after exceeding its budget, "+
+						"the remaining files will be skipped");
+			}
+		}
+		catch (ExecutionException x) {
+			end= System.currentTimeMillis();
+			x.getCause().printStackTrace();
+			result.result= ERROR;
+		}
+		result.timeMillis= end - start;
+
+		result.gcMillis= getCollectionTime() - gcStart;
+		result.peakHeapBytes= heapSampler.finish();
+		if (RuleMetrics.isEnabled()) {
+			result.peakFormulaLength= metrics.getFormulaLengthMax();
+			result.reduceCalls= metrics.getReduceCount();
+		}
+		else {
+			result.peakFormulaLength= -1;
+			result.reduceCalls= -1;
+		}
+		return result;
+	}
+
+	/*
+	 * Tracks the largest total heap usage.
+	 * The memory pools' peak usages are not used because the pools don't
+	 * peak at the same time, so their sum overstates the peak heap usage.
+	 */
+	private static class HeapSampler extends Thread {
+		final MemoryMXBean _memory= ManagementFactory.getMemoryMXBean();
+		volatile boolean _finished= false;
+		volatile long _peak= 0;
+
+		HeapSampler() {
+			super("CNFBenchmark heap sampler");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!_finished) {
+				sample();
+				try {
+					Thread.sleep(HEAP_SAMPLE_MILLIS);
+				}
+				catch (InterruptedException x) {
+					return;
+				}
+			}
+		}
+
+		private void sample() {
+			long used= _memory.getHeapMemoryUsage().getUsed();
+			if (_peak < used)
+				_peak= used;
+		}
+
+		/**
+		 * @return the peak heap usage
+		 */
+		long finish() throws InterruptedException {
+			_finished= true;
+			join();
+			sample();
+			return _peak;
+		}
+	}
+
+	private static String resultOf(Formula formula) {
+		if (formula == null)
+			return UNKNOWN;
+		if (formula.equals(Constant.FALSE))
+			return "FALSE";
+		if (formula.equals(Constant.TRUE))
+			return "TRUE";
+		return UNKNOWN;
+	}
+
+	private static long getCollectionTime() {
+		long time= 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+			time+= Math.max(0, collector.getCollectionTime());
+		return time;
+	}
+
+	private static Object[] valuesOf(Result result) {
+		return new Object[] {
+			result.file, result.result, result.timeMillis, result.peakHeapBytes,
+			result.gcMillis, result.peakFormulaLength, result.reduceCalls
+		};
+	}
+
+	public static void writeCSV(List<Result> results, File file) throws IOException {
+		PrintWriter out= new PrintWriter(new FileWriter(file));
+		try {
+			out.println(join(COLUMNS));
+			for (Result result : results)
+				out.println(join(valuesOf(result)));
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	public static void writeJSON(List<Result> results, File file) throws IOException {
+		PrintWriter out= new PrintWriter(new FileWriter(file));
+		try {
+			out.println("[");
+			for (int r= 0; r < results.size(); r++) {
+				Object[] values= valuesOf(results.get(r));
+				StringBuilder line= new StringBuilder("  {");
+				for (int c= 0; c < COLUMNS.length; c++) {
+					if (0 < c)
+						line.append(", ");
+					line.append('"').append(COLUMNS[c]).append("\": ");
+					if (values[c] instanceof String) {
+						line.append('"').append(((String)values[c]).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+					}
+					else
+						line.append(values[c]);
+				}
+				line.append(r < results.size() - 1 ? "}," : "}");
+				out.println(line);
+			}
+			out.println("]");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads results written by writeCSV, keyed by file name
+	 */
+	public static Map<String, Result> readCSV(File file) throws IOException {
+		HashMap<String, Result> results= new HashMap<String, Result>();
+		BufferedReader reader= new BufferedReader(new FileReader(file));
+		try {
+			String line= reader.readLine(); // header
+			while ((line= reader.readLine()) != null) {
+				if (line.trim().length() <= 0)
+					continue;
+				String[] values= line.split(",");
+				Result result= new Result();
+				result.file= values[0];
+				result.result= values[1];
+				result.timeMillis= Long.parseLong(values[2]);
+				result.peakHeapBytes= Long.parseLong(values[3]);
+				result.gcMillis= Long.parseLong(values[4]);
+				result.peakFormulaLength= Long.parseLong(values[5]);
+				result.reduceCalls= Long.parseLong(values[6]);
+				results.put(result.file, result);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Prints a comparison of the given results to the baseline.
+	 * @return the number of regressions
+	 */
+	public static int compare(List<Result> results, Map<String, Result> baseline, double thresholdPercent) {
+		int regressions= 0;
+		for (Result result : results) {
+			Result base= baseline.get(result.file);
+			if (base == null) {
+				System.out.println(result.file+": not in baseline");
+				continue;
+			}
+			double change= base.timeMillis <= 0 ? 0 :
+				100.0 * (result.timeMillis - base.timeMillis) / base.timeMillis;
+			String status= "ok";
+			if (!result.result.equals(base.result)) {
+				status= "REGRESSION, result was "+base.result+" now "+result.result;
+				regressions++;
+			}
+			else if (thresholdPercent < change) {
+				status= "REGRESSION";
+				regressions++;
+			}
+			System.out.println(result.file+": "+base.timeMillis+"ms -> "+result.timeMillis+"ms ("+
+					String.format("%+.1f", change)+"%), "+status);
+		}
+		return regressions;
+	}
+
+	private static String join(Object[] values) {
+		StringBuilder line= new StringBuilder();
+		for (int i= 0; i < values.length; i++) {
+			if (0 < i)
+				line.append(',');
+			line.append(values[i]);
+		}
+		return line.toString();
+	}
+}
@@ -17,10 +17,9 @@
  ******************************************************************************/
 package com.googlecode.termsat.core.solver;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 
 import com.googlecode.termsat.core.Formula;
 
@@ -30,91 +29,196 @@ import com.googlecode.termsat.core.Formula;
  * File format described here: 
  * 		http://www.satcompetition.org/2004/format-solvers2004.html
  * 
+ * The input may be gzip or xz compressed, and is read and decompressed on a 
+ * separate thread while the clauses are being reduced (see ClauseReader). 
+ * 
+ * Very large problems can be reduced in a FormulaArena, outside of the heap, 
+ * by passing an ArenaSolver to readAndReduce, the arena must not be closed 
+ * while the result is still needed. 
+ * 
  * @author Ted Stockwell <emorning@yahoo.com>
  */
 public class CNFFile {
 
+	/**
+	 * Reads the problem and reduces it one clause at a time.
+	 * When given an ArenaSolver the problem is built and reduced in the 
+	 * solver's FormulaArena, and is never copied to the heap.
+	 */
 	public static CNFFile readAndReduce(InputStream inputStream, Solver solver)
 	 throws IOException
 	{
+		RuleMetrics metrics= RuleMetrics.getInstance();
 		CNFFile cnfFile= new CNFFile();		
-		BufferedReader reader= new BufferedReader(new InputStreamReader(inputStream));
-		String inputLine;
-		while ((inputLine= reader.readLine()) != null) {
-			
-			if (inputLine.startsWith("c"))
-				continue;
-			
-			String[] tokens= inputLine.split(" ");
-			if (tokens[0].equals("p")) {
-				cnfFile._variableCount= Integer.parseInt(tokens[2]);
-				cnfFile._clauseCount= Integer.parseInt(tokens[3]);
-				break;
+		ClauseReader reader= new ClauseReader(inputStream);
+		cnfFile._variableCount= reader.getVariableCount();
+		cnfFile._clauseCount= reader.getClauseCount();
+		
+		try {
+			if (solver instanceof ArenaSolver) {
+				ArenaSolver arenaSolver= (ArenaSolver)solver;
+				Long node= reduceClauses(reader, cnfFile._clauseCount, new ArenaBuilder(arenaSolver, metrics));
+				cnfFile._arena= arenaSolver.getArena();
+				cnfFile._node= node == null ? 0 : node;
 			}
-			
-			throw new RuntimeException("Expected to find 'p' line before clauses");
+			else
+				cnfFile._formula= reduceClauses(reader, cnfFile._clauseCount, new HeapBuilder(solver, metrics));
+		}
+		finally {
+			reader.close();
 		}
 		
-		// read all clauses and append into one big formula
-		Formula formula= null;
-		for (int count= 1; count <= cnfFile._clauseCount; count++) { 
-			if ((inputLine= reader.readLine()) == null) 
-					throw new RuntimeException("Premature end of file");
-			
-			// get all variables in the clause
-			String[] tokens= inputLine.split(" ");
-			if (tokens.length <= 1) // an empty clause
+		if (RuleMetrics.isReportEnabled())
+			metrics.printReport(System.out);
+		return cnfFile;
+	}
+	
+	public static CNFFile read(InputStream inputStream) throws IOException 
+	{
+		return readAndReduce(inputStream, Solver.FAUX_SOLVER);
+	}
+	
+	/*
+	 * Reads all clauses and appends them into one big formula, which is 
+	 * reduced after each clause. 
+	 * @return the reduced formula, or null if there are no clauses
+	 */
+	private static <T> T reduceClauses(ClauseReader reader, int clauseCount, FormulaBuilder<T> builder)
+	 throws IOException
+	{
+		T formula= null;
+		String[] tokens;
+		for (int count= 1; (tokens= reader.nextClause()) != null; count++) { 
+			if (Thread.interrupted())
+				throw new InterruptedIOException("Interrupted while reading clause "+count);
+			if (tokens.length <= 0) // an empty clause
 				continue;
 			
-			// end variable symbols with '.'
-			for (int t= 0; t < tokens.length-1; t++) {
-				tokens[t]= tokens[t].startsWith("-")?
-					 "-"+tokens[t].substring(1)+".": 
-					 tokens[t]+".";
-			}
-			
 			// create clause
-			Formula clause= Formula.createFormula(tokens[0]);
-			for (int v= 1; v < tokens.length-1; v++) 
-				clause= Formula.createImplication(
-							Formula.createNegation(clause),
-							Formula.createFormula(tokens[v]));
+			T clause= builder.literal(tokens[0]);
+			for (int v= 1; v < tokens.length; v++) 
+				clause= builder.implication(
+							builder.negation(clause),
+							builder.literal(tokens[v]));
 				
 			// add clause to formula
 			if (formula == null) {
 				formula= clause;
 			}
 			else
-				formula= Formula.createNegation(
-						Formula.createImplication(
+				formula= builder.negation(
+						builder.implication(
 								formula,
-								Formula.createNegation(clause)));
+								builder.negation(clause)));
 			
-			System.out.println("processing clause "+count+" of "+cnfFile._clauseCount+"; formula length: "+formula.length());
+			System.out.println("processing clause "+count+" of "+clauseCount+"; formula length: "+builder.length(formula));
 			
-			Formula reduced= solver.reduce(formula);
-			formula= reduced;
+			formula= builder.reduce(formula);
 		}
-		
-		cnfFile._formula= formula;
-		return cnfFile;
+		return formula;
 	}
 	
-	public static CNFFile read(InputStream inputStream) throws IOException 
-	{
-		return readAndReduce(inputStream, Solver.FAUX_SOLVER);
+	/*
+	 * Creates and reduces formulas, either on the heap or in a FormulaArena.
+	 * Literals are written by the ClauseReader in the same form as formulas.
+	 */
+	private static abstract class FormulaBuilder<T> {
+		abstract T literal(String literal);
+		abstract T negation(T formula);
+		abstract T implication(T antecedent, T consequent);
+		abstract long length(T formula);
+		abstract T reduce(T formula);
+	}
+	
+	private static class HeapBuilder extends FormulaBuilder<Formula> {
+		final Solver _solver;
+		final RuleMetrics _metrics;
+		HeapBuilder(Solver solver, RuleMetrics metrics) {
+			_solver= solver;
+			_metrics= metrics;
+		}
+		Formula literal(String literal) {
+			return Formula.createFormula(literal);
+		}
+		Formula negation(Formula formula) {
+			return Formula.createNegation(formula);
+		}
+		Formula implication(Formula antecedent, Formula consequent) {
+			return Formula.createImplication(antecedent, consequent);
+		}
+		long length(Formula formula) {
+			return formula.length();
+		}
+		Formula reduce(Formula formula) {
+			return _metrics.reduce(_solver, formula);
+		}
+	}
+	
+	private static class ArenaBuilder extends FormulaBuilder<Long> {
+		final ArenaSolver _solver;
+		final FormulaArena _arena;
+		final RuleMetrics _metrics;
+		ArenaBuilder(ArenaSolver solver, RuleMetrics metrics) {
+			_solver= solver;
+			_arena= solver.getArena();
+			_metrics= metrics;
+		}
+		Long literal(String literal) {
+			if (literal.startsWith("-"))
+				return _arena.negation(literal(literal.substring(1)));
+			return _arena.variable(Integer.parseInt(literal.substring(0, literal.length() - 1)));
+		}
+		Long negation(Long formula) {
+			return _arena.negation(formula);
+		}
+		Long implication(Long antecedent, Long consequent) {
+			return _arena.implication(antecedent, consequent);
+		}
+		long length(Long formula) {
+			return _arena.getLength(formula);
+		}
+		Long reduce(Long formula) {
+			return _metrics.reduce(_solver, formula);
+		}
 	}
 	
 	private Formula _formula;
+	private FormulaArena _arena;
+	private long _node;
 	private int _variableCount;
 	private int _clauseCount;
 	
 	private CNFFile() { }
 
+	/**
+	 * A problem reduced in a FormulaArena is copied to the heap by every 
+	 * call, which for a formula that is not reduced to a constant can take 
+	 * as much memory as reducing it on the heap would have.
+	 * Use getFormulaText or getFormulaNode to read such a formula in place.
+	 */
 	public Formula getFormula() {
+		if (_arena != null)
+			return _node == 0 ? null : _arena.getFormula(_node);
 		return _formula;
 	}
 	
+	/**
+	 * @return the formula's node, for a problem reduced in a FormulaArena, otherwise 0
+	 */
+	public long getFormulaNode() {
+		return _node;
+	}
+	
+	/**
+	 * @return the symbols of the formula, for a problem reduced in a 
+	 * 	FormulaArena the symbols are read from the arena
+	 */
+	public CharSequence getFormulaText() {
+		if (_arena != null)
+			return _node == 0 ? null : _arena.getText(_node);
+		return _formula == null ? null : _formula.toString();
+	}
+	
 	public int getVariableCount() {
 		return _variableCount;
 	}
@@ -0,0 +1,247 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.solver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Reads the clauses of a CNF file on a separate thread.
+ *
+ * Compressed input is detected by its magic number and decompressed as it
+ * is read, gzip is always supported, xz is supported when the
+ * org.tukaani.xz library is on the classpath.
+ * The header is read when the ClauseReader is created, after that a
+ * producer thread decompresses and tokenizes the rest of the input and
+ * hands batches of clauses to the consumer through a bounded queue, so
+ * at most QUEUE_CAPACITY * BATCH_SIZE clauses are held in memory and
+ * the input is never fully decompressed.
+ *
+ * A clause is returned as the variable symbols of its literals, as used by
+ * Formula.createFormula, that is, the variable number followed by '.',
+ * and preceded by '-' if the literal is negated.
+ * An empty clause is returned as an empty array.
+ */
+class ClauseReader {
+
+	private static final int BATCH_SIZE= 256;
+	private static final int QUEUE_CAPACITY= 64;
+	private static final int BUFFER_SIZE= 1 << 16;
+	private static final long CLOSE_TIMEOUT_MILLIS= 1000;
+	private static final List<String[]> END_OF_CLAUSES= new ArrayList<String[]>();
+
+	/**
+	 * @return a stream of the decompressed contents of the given stream
+	 */
+	static InputStream decompress(InputStream inputStream) throws IOException {
+		BufferedInputStream in= new BufferedInputStream(inputStream, BUFFER_SIZE);
+		in.mark(6);
+		byte[] magic= new byte[6];
+		int length= 0;
+		for (int n; length < magic.length && 0 <= (n= in.read(magic, length, magic.length - length));)
+			length+= n;
+		in.reset();
+
+		if (2 <= length && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B)
+			return new GZIPInputStream(in, BUFFER_SIZE);
+
+		if (6 <= length && (magic[0] & 0xFF) == 0xFD && magic[1] == '7' && magic[2] == 'z'
+				&& magic[3] == 'X' && magic[4] == 'Z' && magic[5] == 0) {
+			try {
+				Class<?> xzInputStream= Class.forName("org.tukaani.xz.XZInputStream");
+				return (InputStream)xzInputStream.getConstructor(InputStream.class).newInstance(in);
+			}
+			catch (ClassNotFoundException x) {
+				throw new IOException("Reading xz compressed input requires org.tukaani.xz on the classpath");
+			}
+			catch (Exception x) {
+				throw new IOException("Failed to open xz compressed input", x);
+			}
+		}
+
+		return in;
+	}
+
+
+	private final InputStream _input;
+	private final BufferedReader _reader;
+	private final ArrayBlockingQueue<List<String[]>> _queue= new ArrayBlockingQueue<List<String[]>>(QUEUE_CAPACITY);
+	private final Thread _producer;
+	private volatile Throwable _failure;
+	private List<String[]> _batch;
+	private int _position;
+	private int _variableCount;
+	private int _clauseCount;
+
+	ClauseReader(InputStream inputStream) throws IOException {
+		_input= inputStream;
+		_reader= new BufferedReader(new InputStreamReader(decompress(inputStream)), BUFFER_SIZE);
+		readHeader();
+
+		_producer= new Thread("CNF clause reader") {
+			@Override
+			public void run() {
+				produceClauses();
+			}
+		};
+		_producer.setDaemon(true);
+		_producer.start();
+	}
+
+	int getVariableCount() {
+		return _variableCount;
+	}
+
+	int getClauseCount() {
+		return _clauseCount;
+	}
+
+	/**
+	 * @return the next clause, or null if there are no more clauses
+	 */
+	String[] nextClause() throws IOException {
+		if (_batch == null || _batch.size() <= _position) {
+			try {
+				_batch= _queue.take();
+			}
+			catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading clauses", x);
+			}
+			_position= 0;
+			if (_batch == END_OF_CLAUSES) {
+				_queue.add(END_OF_CLAUSES); // so that subsequent calls also return null
+				if (_failure != null) {
+					if (_failure instanceof IOException)
+						throw new IOException(_failure.getMessage(), _failure);
+					throw new RuntimeException(_failure.getMessage(), _failure);
+				}
+				return null;
+			}
+		}
+		return _batch.get(_position++);
+	}
+
+	/**
+	 * Stops the producer thread and closes the input.
+	 * The producer is only waited for CLOSE_TIMEOUT_MILLIS, a producer 
+	 * that is blocked reading input that can't be interrupted is left to 
+	 * finish on its own, it's a daemon thread.
+	 */
+	void close() {
+		_producer.interrupt();
+		// the producer holds the reader's lock while it reads, so the reader 
+		// can't be closed until it stops, but closing the underlying stream 
+		// makes a read that is waiting for input fail 
+		try {
+			_input.close();
+		}
+		catch (IOException x) {
+			// ignore
+		}
+		try {
+			_producer.join(CLOSE_TIMEOUT_MILLIS);
+		}
+		catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+		}
+		if (_producer.isAlive())
+			return;
+		try {
+			_reader.close();
+		}
+		catch (IOException x) {
+			// ignore
+		}
+	}
+
+	private void readHeader() throws IOException {
+		String inputLine;
+		while ((inputLine= _reader.readLine()) != null) {
+
+			if (inputLine.startsWith("c"))
+				continue;
+
+			String[] tokens= inputLine.split(" ");
+			if (tokens[0].equals("p")) {
+				_variableCount= Integer.parseInt(tokens[2]);
+				_clauseCount= Integer.parseInt(tokens[3]);
+				return;
+			}
+
+			throw new RuntimeException("Expected to find 'p' line before clauses");
+		}
+	}
+
+	private void produceClauses() {
+		try {
+			List<String[]> batch= new ArrayList<String[]>(BATCH_SIZE);
+			for (int count= 1; count <= _clauseCount; count++) {
+				String inputLine= _reader.readLine();
+				if (inputLine == null)
+					throw new RuntimeException("Premature end of file");
+				batch.add(parseClause(inputLine));
+				if (BATCH_SIZE <= batch.size()) {
+					_queue.put(batch);
+					batch= new ArrayList<String[]>(BATCH_SIZE);
+				}
+			}
+			if (!batch.isEmpty())
+				_queue.put(batch);
+		}
+		catch (InterruptedException x) {
+			return; // the consumer has closed the reader
+		}
+		catch (Throwable t) {
+			_failure= t;
+		}
+
+		try {
+			_queue.put(END_OF_CLAUSES);
+		}
+		catch (InterruptedException x) {
+			// the consumer has closed the reader
+		}
+	}
+
+	/*
+	 * The last token on a line is the terminating 0
+	 */
+	private static String[] parseClause(String inputLine) {
+		String[] tokens= inputLine.split(" ");
+		if (tokens.length <= 1) // an empty clause
+			return new String[0];
+
+		// end variable symbols with '.'
+		String[] literals= new String[tokens.length-1];
+		for (int t= 0; t < tokens.length-1; t++) {
+			literals[t]= tokens[t].startsWith("-")?
+				 "-"+tokens[t].substring(1)+".":
+				 tokens[t]+".";
+		}
+		return literals;
+	}
+}
@@ -0,0 +1,575 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.solver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.googlecode.termsat.core.Constant;
+import com.googlecode.termsat.core.Formula;
+import com.googlecode.termsat.core.Implication;
+import com.googlecode.termsat.core.Negation;
+import com.googlecode.termsat.core.Variable;
+
+
+/**
+ * Stores very large formulas outside of the Java heap.
+ *
+ * Formulas are stored as nodes that are addressed by long numbers, starting
+ * at 1, 0 is never a node.
+ * Nodes are hash-consed, identical subformulas are stored once, so two
+ * formulas in the same arena are equal only if they are the same node.
+ * Each node is a record of five longs: a tag (the number of a variable,
+ * or NEGATION, IMPLICATION, TRUE, or FALSE), the nodes of its children,
+ * the number of symbols in its text, and its normal form, which is
+ * recorded by the ArenaSolver.
+ * Nodes are found by an open-addressing hash table that is also stored
+ * outside of the heap, and that is rebuilt from the records when it grows.
+ *
+ * The records and the table are stored in fixed size chunks.
+ * By default the chunks are allocated from direct memory (which is limited
+ * by -XX:MaxDirectMemorySize), when created with a spill folder the chunks
+ * are instead memory-mapped from temporary files in that folder, so the
+ * arena can grow larger than the available memory.
+ *
+ * Formulas in the arena don't contribute to garbage collection pauses,
+ * the symbols of a formula can be read in place through the CharSequence
+ * returned by getText, and a formula can be copied to the heap with getFormula.
+ * Nodes are never removed, the arena should be closed when its formulas
+ * are no longer needed.
+ * An arena is not thread-safe.
+ */
+public class FormulaArena {
+
+	public static final int NEGATION= -1;
+	public static final int IMPLICATION= -2;
+	public static final int TRUE= -3;
+	public static final int FALSE= -4;
+
+	private static final int RECORD_SIZE= 5;
+	private static final int TAG= 0;
+	private static final int LEFT= 1;
+	private static final int RIGHT= 2;
+	private static final int LENGTH= 3;
+	private static final int NORMAL_FORM= 4;
+
+	private static final long INITIAL_TABLE_SIZE= 1 << 16;
+
+	private final File _spillFolder;
+	private LongArray _records;
+	private LongArray _table;
+	private long _tableSize;
+	private long _count= 0;
+	private int _maxVariable= 0;
+
+	/**
+	 * Creates an arena in direct memory
+	 */
+	public FormulaArena() {
+		_spillFolder= null;
+		_records= createArray();
+		_tableSize= INITIAL_TABLE_SIZE;
+		_table= createArray();
+	}
+
+	/**
+	 * Creates an arena that is memory-mapped from temporary files in the given folder
+	 */
+	public FormulaArena(File spillFolder) throws IOException {
+		if (!spillFolder.isDirectory())
+			throw new IOException(spillFolder+" is not a folder");
+		_spillFolder= spillFolder;
+		_records= createArray();
+		_tableSize= INITIAL_TABLE_SIZE;
+		_table= createArray();
+	}
+
+	/**
+	 * @return the number of nodes in the arena
+	 */
+	public long size() {
+		return _count;
+	}
+
+	/**
+	 * @return the largest variable number in the arena
+	 */
+	public int getMaxVariable() {
+		return _maxVariable;
+	}
+
+	public long variable(int number) {
+		if (number <= 0)
+			throw new IllegalArgumentException("Not a variable number: "+number);
+		if (_maxVariable < number)
+			_maxVariable= number;
+		return intern(number, 0, 0, Integer.toString(number).length() + 1);
+	}
+
+	public long constant(boolean value) {
+		if (value)
+			return intern(TRUE, 0, 0, Constant.TRUE.length());
+		return intern(FALSE, 0, 0, Constant.FALSE.length());
+	}
+
+	public long negation(long child) {
+		return intern(NEGATION, child, 0, 1 + getLength(child));
+	}
+
+	public long implication(long antecedent, long consequent) {
+		return intern(IMPLICATION, antecedent, consequent, 1 + getLength(antecedent) + getLength(consequent));
+	}
+
+	/**
+	 * @return the variable number of a variable node, otherwise NEGATION,
+	 * 	IMPLICATION, TRUE, or FALSE
+	 */
+	public int getTag(long node) {
+		return (int)_records.get(node * RECORD_SIZE + TAG);
+	}
+
+	/**
+	 * @return the child of a negation, or the antecedent of an implication
+	 */
+	public long getLeft(long node) {
+		return _records.get(node * RECORD_SIZE + LEFT);
+	}
+
+	/**
+	 * @return the consequent of an implication
+	 */
+	public long getRight(long node) {
+		return _records.get(node * RECORD_SIZE + RIGHT);
+	}
+
+	/**
+	 * @return the number of symbols in the formula
+	 */
+	public long getLength(long node) {
+		return _records.get(node * RECORD_SIZE + LENGTH);
+	}
+
+	/**
+	 * @return the normal form recorded for the given node, or 0
+	 */
+	public long getNormalForm(long node) {
+		return _records.get(node * RECORD_SIZE + NORMAL_FORM);
+	}
+
+	public void setNormalForm(long node, long normalForm) {
+		_records.put(node * RECORD_SIZE + NORMAL_FORM, normalForm);
+	}
+
+	/**
+	 * Adds the given formula to the arena.
+	 * @return the formula's node
+	 */
+	public long add(Formula formula) {
+		return add(formula, new HashMap<Integer, Long>());
+	}
+
+	/**
+	 * Adds the given formula to the arena, variables whose numbers are keys
+	 * of the given map are replaced with the mapped nodes.
+	 */
+	long add(Formula formula, Map<Integer, Long> substitutions) {
+		IdentityHashMap<Formula, Long> nodes= new IdentityHashMap<Formula, Long>();
+		ArrayList<Formula> stack= new ArrayList<Formula>();
+		stack.add(formula);
+		while (!stack.isEmpty()) {
+			Formula top= stack.get(stack.size() - 1);
+			if (nodes.containsKey(top)) {
+				stack.remove(stack.size() - 1);
+				continue;
+			}
+			if (top instanceof Negation) {
+				Long child= nodes.get(((Negation)top).getChild());
+				if (child == null) {
+					stack.add(((Negation)top).getChild());
+					continue;
+				}
+				nodes.put(top, negation(child));
+			}
+			else if (top instanceof Implication) {
+				Long antecedent= nodes.get(((Implication)top).getAntecedent());
+				Long consequent= nodes.get(((Implication)top).getConsequent());
+				if (antecedent == null || consequent == null) {
+					if (consequent == null)
+						stack.add(((Implication)top).getConsequent());
+					if (antecedent == null)
+						stack.add(((Implication)top).getAntecedent());
+					continue;
+				}
+				nodes.put(top, implication(antecedent, consequent));
+			}
+			else if (top.equals(Constant.TRUE)) {
+				nodes.put(top, constant(true));
+			}
+			else if (top.equals(Constant.FALSE)) {
+				nodes.put(top, constant(false));
+			}
+			else if (top instanceof Variable) {
+				int number= getVariableNumber(top);
+				Long substitution= substitutions.get(number);
+				nodes.put(top, substitution != null ? substitution : variable(number));
+			}
+			else
+				throw new IllegalArgumentException("Unknown formula type: "+top.getClass().getName());
+			stack.remove(stack.size() - 1);
+		}
+		return nodes.get(formula);
+	}
+
+	/*
+	 * Variables are written as their number followed by '.'
+	 */
+	static int getVariableNumber(Formula variable) {
+		String text= variable.toString();
+		return Integer.parseInt(text.substring(0, text.length() - 1));
+	}
+
+	/**
+	 * Copies a formula from the arena to the heap
+	 */
+	public Formula getFormula(long node) {
+		HashMap<Long, Formula> formulas= new HashMap<Long, Formula>();
+		LongStack stack= new LongStack();
+		stack.push(node);
+		while (!stack.isEmpty()) {
+			long top= stack.peek();
+			if (formulas.containsKey(top)) {
+				stack.pop();
+				continue;
+			}
+			int tag= getTag(top);
+			if (tag == NEGATION) {
+				Formula child= formulas.get(getLeft(top));
+				if (child == null) {
+					stack.push(getLeft(top));
+					continue;
+				}
+				formulas.put(top, Formula.createNegation(child));
+			}
+			else if (tag == IMPLICATION) {
+				Formula antecedent= formulas.get(getLeft(top));
+				Formula consequent= formulas.get(getRight(top));
+				if (antecedent == null || consequent == null) {
+					if (consequent == null)
+						stack.push(getRight(top));
+					if (antecedent == null)
+						stack.push(getLeft(top));
+					continue;
+				}
+				formulas.put(top, Formula.createImplication(antecedent, consequent));
+			}
+			else
+				formulas.put(top, getLeafFormula(top));
+			stack.pop();
+		}
+		return formulas.get(node);
+	}
+
+	/**
+	 * @return a variable or constant on the heap
+	 */
+	Formula getLeafFormula(long node) {
+		int tag= getTag(node);
+		if (tag == TRUE)
+			return Constant.TRUE;
+		if (tag == FALSE)
+			return Constant.FALSE;
+		return Formula.createFormula(tag+".");
+	}
+
+	private String getLeafText(int tag) {
+		if (tag == TRUE)
+			return Constant.TRUE.toString();
+		if (tag == FALSE)
+			return Constant.FALSE.toString();
+		return tag+".";
+	}
+
+	/**
+	 * @return a view of the symbols of the given formula, in the same form
+	 * 	produced by Formula.toString, the symbols are not copied
+	 */
+	public CharSequence getText(long node) {
+		return new NodeText(node, 0, getLength(node));
+	}
+
+	/*
+	 * The symbols of a node, from start to start + length
+	 */
+	private class NodeText implements CharSequence {
+		final long _root;
+		final long _start;
+		final int _length;
+
+		NodeText(long root, long start, long length) {
+			if (Integer.MAX_VALUE < length)
+				throw new IllegalArgumentException("Sequence too long: "+length);
+			_root= root;
+			_start= start;
+			_length= (int)length;
+		}
+
+		public int length() {
+			return _length;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || _length <= index)
+				throw new IndexOutOfBoundsException("index "+index+", length "+_length);
+			long node= _root;
+			long position= _start + index;
+			while (true) {
+				int tag= getTag(node);
+				if (tag != NEGATION && tag != IMPLICATION)
+					return getLeafText(tag).charAt((int)position);
+				if (position == 0)
+					return tag == NEGATION ? '-' : '*';
+				position--;
+				long left= getLeft(node);
+				if (tag == NEGATION || position < getLength(left)) {
+					node= left;
+				}
+				else {
+					position-= getLength(left);
+					node= getRight(node);
+				}
+			}
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end < start || _length < end)
+				throw new IndexOutOfBoundsException("["+start+", "+end+"), length "+_length);
+			return new NodeText(_root, _start + start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text= new StringBuilder(_length);
+			long end= _start + _length;
+			long position= 0;
+			LongStack stack= new LongStack();
+			stack.push(_root);
+			while (!stack.isEmpty() && position < end) {
+				long node= stack.pop();
+				long length= getLength(node);
+				if (position + length <= _start) {
+					position+= length;
+					continue;
+				}
+				int tag= getTag(node);
+				if (tag == NEGATION || tag == IMPLICATION) {
+					if (_start <= position)
+						text.append(tag == NEGATION ? '-' : '*');
+					position++;
+					if (tag == IMPLICATION)
+						stack.push(getRight(node));
+					stack.push(getLeft(node));
+				}
+				else {
+					String leaf= getLeafText(tag);
+					for (int i= 0; i < leaf.length() && position < end; i++, position++) {
+						if (_start <= position)
+							text.append(leaf.charAt(i));
+					}
+				}
+			}
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Drops the arena's chunks and closes and deletes the spill files, if any.
+	 * The arena may not be used after it is closed.
+	 * Direct and memory-mapped chunks are only freed when they are garbage 
+	 * collected, there's no supported way to free them sooner.
+	 * A file that is still mapped can't be deleted on some platforms, 
+	 * such as Windows, a spill file that can't be deleted is reported and 
+	 * is deleted when the JVM exits.
+	 */
+	public void close() throws IOException {
+		_records.close();
+		_table.close();
+		_count= 0;
+	}
+
+	private long intern(long tag, long left, long right, long length) {
+		if (_tableSize < (_count + 1) * 2)
+			rehash(_tableSize * 2);
+		long mask= _tableSize - 1;
+		for (long slot= hash(tag, left, right) & mask;; slot= (slot + 1) & mask) {
+			long node= _table.get(slot);
+			if (node == 0) {
+				node= ++_count;
+				long record= node * RECORD_SIZE;
+				_records.put(record + TAG, tag);
+				_records.put(record + LEFT, left);
+				_records.put(record + RIGHT, right);
+				_records.put(record + LENGTH, length);
+				_table.put(slot, node);
+				return node;
+			}
+			long record= node * RECORD_SIZE;
+			if (_records.get(record + TAG) == tag &&
+					_records.get(record + LEFT) == left &&
+					_records.get(record + RIGHT) == right)
+				return node;
+		}
+	}
+
+	private static long hash(long tag, long left, long right) {
+		long hash= tag * 0x9E3779B97F4A7C15L;
+		hash= (hash ^ left) * 0xC2B2AE3D27D4EB4FL;
+		hash= (hash ^ right) * 0x165667B19E3779F9L;
+		return hash ^ (hash >>> 29);
+	}
+
+	private void rehash(long tableSize) {
+		LongArray table= createArray();
+		long mask= tableSize - 1;
+		for (long node= 1; node <= _count; node++) {
+			long record= node * RECORD_SIZE;
+			long slot= hash(_records.get(record + TAG), _records.get(record + LEFT), _records.get(record + RIGHT)) & mask;
+			while (table.get(slot) != 0)
+				slot= (slot + 1) & mask;
+			table.put(slot, node);
+		}
+		try {
+			_table.close();
+		}
+		catch (IOException x) {
+			throw new RuntimeException("Failed to release the arena's hash table", x);
+		}
+		_table= table;
+		_tableSize= tableSize;
+	}
+
+	private LongArray createArray() {
+		try {
+			return new LongArray(_spillFolder);
+		}
+		catch (IOException x) {
+			throw new RuntimeException("Failed to create an arena file in "+_spillFolder, x);
+		}
+	}
+
+
+	/*
+	 * An array of longs, allocated in chunks as needed, unallocated elements are 0
+	 */
+	private static class LongArray {
+		static final int CHUNK_BITS= 20; // 8MB chunks
+		static final int CHUNK_SIZE= 1 << CHUNK_BITS;
+		static final int CHUNK_MASK= CHUNK_SIZE - 1;
+
+		final ArrayList<ByteBuffer> _chunks= new ArrayList<ByteBuffer>();
+		final File _spillFile;
+		final RandomAccessFile _spillAccess;
+		final FileChannel _spillChannel;
+
+		LongArray(File spillFolder) throws IOException {
+			if (spillFolder == null) {
+				_spillFile= null;
+				_spillAccess= null;
+				_spillChannel= null;
+			}
+			else {
+				_spillFile= File.createTempFile("termsat-arena", ".tmp", spillFolder);
+				_spillFile.deleteOnExit();
+				_spillAccess= new RandomAccessFile(_spillFile, "rw");
+				_spillChannel= _spillAccess.getChannel();
+			}
+		}
+
+		long get(long index) {
+			int chunk= (int)(index >>> CHUNK_BITS);
+			if (_chunks.size() <= chunk)
+				return 0;
+			return _chunks.get(chunk).getLong((int)(index & CHUNK_MASK) << 3);
+		}
+
+		void put(long index, long value) {
+			int chunk= (int)(index >>> CHUNK_BITS);
+			while (_chunks.size() <= chunk)
+				_chunks.add(allocateChunk(_chunks.size()));
+			_chunks.get(chunk).putLong((int)(index & CHUNK_MASK) << 3, value);
+		}
+
+		private ByteBuffer allocateChunk(int chunk) {
+			if (_spillChannel == null)
+				return ByteBuffer.allocateDirect(CHUNK_SIZE << 3);
+			try {
+				return _spillChannel.map(FileChannel.MapMode.READ_WRITE, (long)chunk << (CHUNK_BITS + 3), CHUNK_SIZE << 3);
+			}
+			catch (IOException x) {
+				throw new RuntimeException("Failed to map arena chunk "+chunk+" of "+_spillFile, x);
+			}
+		}
+
+		void close() throws IOException {
+			_chunks.clear();
+			if (_spillChannel != null) {
+				_spillChannel.close();
+				_spillAccess.close();
+				// deleteOnExit was requested when the file was created
+				if (!_spillFile.delete())
+					System.err.println("Failed to delete arena file "+_spillFile+", it will be deleted on exit");
+			}
+		}
+	}
+
+
+	/*
+	 * A stack of nodes
+	 */
+	static class LongStack {
+		long[] _elements= new long[64];
+		int _size= 0;
+
+		void push(long node) {
+			if (_size == _elements.length) {
+				long[] elements= new long[_size * 2];
+				System.arraycopy(_elements, 0, elements, 0, _size);
+				_elements= elements;
+			}
+			_elements[_size++]= node;
+		}
+
+		long peek() {
+			return _elements[_size - 1];
+		}
+
+		long pop() {
+			return _elements[--_size];
+		}
+
+		boolean isEmpty() {
+			return _size <= 0;
+		}
+	}
+}
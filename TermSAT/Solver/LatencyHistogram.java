@@ -0,0 +1,126 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.solver;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A fixed-size, lock-free histogram of non-negative long values, in the
+ * style of an HDR histogram.
+ *
+ * Values are grouped into buckets by their highest set bit, and each power
+ * of two is split into 16 linear sub-buckets, so recorded values are
+ * accurate to within about 6%.
+ * Recording a value is a couple of shifts and one atomic increment, cheap
+ * enough to leave on in production.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS= 4;
+	private static final int SUB_BUCKET_COUNT= 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT= (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray _counts= new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong _totalCount= new AtomicLong();
+	private final AtomicLong _totalValue= new AtomicLong();
+	private final AtomicLong _maxValue= new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0)
+			value= 0;
+		_counts.incrementAndGet(indexOf(value));
+		_totalCount.incrementAndGet();
+		_totalValue.addAndGet(value);
+		long max;
+		while ((max= _maxValue.get()) < value) {
+			if (_maxValue.compareAndSet(max, value))
+				break;
+		}
+	}
+
+	public long getCount() {
+		return _totalCount.get();
+	}
+
+	public long getMax() {
+		return _maxValue.get();
+	}
+
+	public double getMean() {
+		long count= _totalCount.get();
+		if (count <= 0)
+			return 0;
+		return (double)_totalValue.get() / count;
+	}
+
+	/**
+	 * @param percentile a number between 0 and 100
+	 * @return the lowest value of the bucket that contains the given percentile
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count= _totalCount.get();
+		if (count <= 0)
+			return 0;
+		long target= (long)Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+		if (target < 1)
+			target= 1;
+		long seen= 0;
+		for (int i= 0; i < BUCKET_COUNT; i++) {
+			seen+= _counts.get(i);
+			if (target <= seen)
+				return Math.min(lowestValueAt(i), getMax());
+		}
+		return getMax();
+	}
+
+	public void reset() {
+		for (int i= 0; i < BUCKET_COUNT; i++)
+			_counts.set(i, 0);
+		_totalCount.set(0);
+		_totalValue.set(0);
+		_maxValue.set(0);
+	}
+
+	public void print(PrintStream out, String name, String units) {
+		out.println(name+": count="+getCount()
+				+", mean="+String.format("%.1f", getMean())+units
+				+", p50="+getValueAtPercentile(50)+units
+				+", p90="+getValueAtPercentile(90)+units
+				+", p99="+getValueAtPercentile(99)+units
+				+", max="+getMax()+units);
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (int)value;
+		int msb= 63 - Long.numberOfLeadingZeros(value);
+		int subBucket= (int)(value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+		return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	static long lowestValueAt(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+		int msb= index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+		int subBucket= index % SUB_BUCKET_COUNT;
+		return ((long)(SUB_BUCKET_COUNT + subBucket)) << (msb - SUB_BUCKET_BITS);
+	}
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.solver;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * Flight Recorder event emitted for every Solver.reduce call made through
+ * RuleMetrics.
+ * The event is disabled unless a recording enables 'termsat.Reduce',
+ * in which case the cost is a couple of field writes per call.
+ */
+@Name("termsat.Reduce")
+@Label("Reduce")
+@Category("TermSAT")
+@Description("A call to Solver.reduce")
+class ReduceEvent extends Event {
+
+	@Label("Input Length")
+	int inputLength;
+
+	@Label("Output Length")
+	int outputLength;
+}
@@ -0,0 +1,327 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.solver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.googlecode.termsat.core.Formula;
+
+
+/**
+ * Collects statistics about how the solver spends its time:
+ * latency of Solver.reduce calls, the lengths of the formulas being reduced,
+ * how often the InstanceRecognizer is asked for a match and how often it finds one,
+ * and how many times each reduction rule is applied.
+ *
+ * The per-rule counts depend on the rule lookup calling ruleApplied. 
+ * The only such call is in RuleRepository.cs, which is not part of the build, 
+ * so until the Java rule lookup is restored the counts stay empty.
+ *
+ * Rules are identified by the ids assigned by the RuleIndexer, that is,
+ * by the ID of the node in the NONCANONICAL table that holds the rule.
+ *
+ * The metrics are always collected (the cost is a few atomic increments per call)
+ * unless the system property termsat.metrics is set to false.
+ * They are published through JMX as com.googlecode.termsat:type=RuleMetrics,
+ * and every reduce call is also recorded as a 'termsat.Reduce' Flight Recorder event.
+ * Set the system property termsat.metrics.report to true to print a report
+ * at the end of every CNFFile.readAndReduce run.
+ * Set the system property termsat.metrics.profile to a file name to have
+ * CNFBenchmark write the rule application counts of all the files in a
+ * run to that file, once, at the end of the run.
+ * The file can be used to create a profile-guided rule index with the RuleIndexer.
+ */
+public class RuleMetrics implements RuleMetricsMBean {
+
+	public static final String OBJECT_NAME= "com.googlecode.termsat:type=RuleMetrics";
+
+	private static final boolean ENABLED= !"false".equals(System.getProperty("termsat.metrics"));
+	private static final boolean REPORT_ENABLED= Boolean.getBoolean("termsat.metrics.report");
+	private static final String PROFILE_FILE= System.getProperty("termsat.metrics.profile");
+	private static final int REPORT_TOP_RULES= 20;
+
+	private static RuleMetrics __instance;
+
+	/**
+	 * @return the metrics shared by all solvers in this JVM
+	 */
+	public static synchronized RuleMetrics getInstance() {
+		if (__instance == null) {
+			__instance= new RuleMetrics();
+			__instance.register();
+		}
+		return __instance;
+	}
+
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	public static boolean isReportEnabled() {
+		return REPORT_ENABLED;
+	}
+
+	/**
+	 * @return the file to which rule application counts are written, or null
+	 */
+	public static String getProfileFile() {
+		return PROFILE_FILE;
+	}
+
+
+	private final LatencyHistogram _reduceLatency= new LatencyHistogram(); // nanoseconds
+	private final LatencyHistogram _formulaLengths= new LatencyHistogram();
+	private final AtomicLong _matchAttempts= new AtomicLong();
+	private final AtomicLong _matchSuccesses= new AtomicLong();
+	private final ConcurrentHashMap<Integer, AtomicLong> _ruleApplications= new ConcurrentHashMap<Integer, AtomicLong>();
+
+	RuleMetrics() { }
+
+	private void register() {
+		try {
+			MBeanServer server= ManagementFactory.getPlatformMBeanServer();
+			ObjectName name= new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name))
+				server.registerMBean(this, name);
+		}
+		catch (Exception x) {
+			// metrics are still collected, they just wont be visible through JMX
+			System.err.println("Failed to register "+OBJECT_NAME+": "+x);
+		}
+	}
+
+	/**
+	 * Reduces the given formula with the given solver and records
+	 * the latency of the call and the length of the formula.
+	 */
+	public Formula reduce(Solver solver, Formula formula) {
+		if (!ENABLED)
+			return solver.reduce(formula);
+
+		ReduceEvent event= new ReduceEvent();
+		event.begin();
+		long start= System.nanoTime();
+		Formula reduced= solver.reduce(formula);
+		recordReduce(event, start, formula.length(), reduced.length());
+		return reduced;
+	}
+
+	/**
+	 * Reduces the given node in the solver's FormulaArena, the same way 
+	 * as reduce(Solver, Formula).
+	 */
+	public long reduce(ArenaSolver solver, long node) {
+		if (!ENABLED)
+			return solver.reduce(node);
+
+		ReduceEvent event= new ReduceEvent();
+		event.begin();
+		long start= System.nanoTime();
+		long reduced= solver.reduce(node);
+		recordReduce(event, start, solver.getArena().getLength(node), solver.getArena().getLength(reduced));
+		return reduced;
+	}
+
+	private void recordReduce(ReduceEvent event, long start, long length, long reducedLength) {
+		long elapsed= System.nanoTime() - start;
+		_reduceLatency.record(elapsed);
+		_formulaLengths.record(length);
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.inputLength= (int)Math.min(Integer.MAX_VALUE, length);
+			event.outputLength= (int)Math.min(Integer.MAX_VALUE, reducedLength);
+			event.commit();
+		}
+	}
+
+	/**
+	 * Records an attempt to find a rule that matches a formula.
+	 */
+	public void matchAttempted(boolean found) {
+		if (!ENABLED)
+			return;
+		_matchAttempts.incrementAndGet();
+		if (found)
+			_matchSuccesses.incrementAndGet();
+	}
+
+	/**
+	 * Records the application of a reduction rule.
+	 * Meant to be called by the rule lookup for every rule it applies, 
+	 * nothing in the build calls it yet (see the class comment).
+	 * @param ruleId the id of the rule in the NONCANONICAL table
+	 */
+	public void ruleApplied(int ruleId) {
+		if (!ENABLED)
+			return;
+		AtomicLong count= _ruleApplications.get(ruleId);
+		if (count == null) {
+			AtomicLong newCount= new AtomicLong();
+			count= _ruleApplications.putIfAbsent(ruleId, newCount);
+			if (count == null)
+				count= newCount;
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of times each rule has been applied, keyed by rule id
+	 */
+	public Map<Integer, Long> getRuleApplicationCounts() {
+		Map<Integer, Long> counts= new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : _ruleApplications.entrySet())
+			counts.put(entry.getKey(), entry.getValue().get());
+		return counts;
+	}
+
+	/**
+	 * Writes the rule application counts to the given file, one rule per line,
+	 * as the rule id and the count separated by a tab.
+	 * This is the format read by RuleIndexer -profile.
+	 */
+	public void writeRuleProfile(String fileName) throws IOException {
+		writeRuleProfile(fileName, getRuleApplicationCounts());
+	}
+
+	/**
+	 * Writes the given rule application counts in the format of 
+	 * writeRuleProfile(String).
+	 */
+	public static void writeRuleProfile(String fileName, Map<Integer, Long> counts) throws IOException {
+		PrintWriter out= new PrintWriter(new FileWriter(fileName));
+		try {
+			for (Map.Entry<Integer, Long> entry : counts.entrySet())
+				out.println(entry.getKey()+"\t"+entry.getValue());
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	public LatencyHistogram getReduceLatency() {
+		return _reduceLatency;
+	}
+
+	public LatencyHistogram getFormulaLengths() {
+		return _formulaLengths;
+	}
+
+	public void printReport(PrintStream out) {
+		out.println("==== TermSAT rule metrics ====");
+		_reduceLatency.print(out, "reduce latency", "ns");
+		_formulaLengths.print(out, "formula length", "");
+		out.println("match attempts: "+_matchAttempts.get()+", successes: "+_matchSuccesses.get());
+		out.println("rule applications: "+getRuleApplications()+" by "+getDistinctRulesApplied()+" distinct rules");
+
+		List<Map.Entry<Integer, Long>> rules= new ArrayList<Map.Entry<Integer, Long>>(getRuleApplicationCounts().entrySet());
+		Collections.sort(rules, new Comparator<Map.Entry<Integer, Long>>() {
+			public int compare(Map.Entry<Integer, Long> o1, Map.Entry<Integer, Long> o2) {
+				return o2.getValue().compareTo(o1.getValue());
+			}
+		});
+		for (int i= 0; i < rules.size() && i < REPORT_TOP_RULES; i++) {
+			Map.Entry<Integer, Long> rule= rules.get(i);
+			out.println("  rule "+rule.getKey()+": "+rule.getValue());
+		}
+	}
+
+
+	//
+	// RuleMetricsMBean
+	//
+
+	public long getReduceCount() {
+		return _reduceLatency.getCount();
+	}
+
+	public long getReduceLatencyMeanMicros() {
+		return (long)(_reduceLatency.getMean() / 1000);
+	}
+
+	public long getReduceLatencyP50Micros() {
+		return _reduceLatency.getValueAtPercentile(50) / 1000;
+	}
+
+	public long getReduceLatencyP99Micros() {
+		return _reduceLatency.getValueAtPercentile(99) / 1000;
+	}
+
+	public long getReduceLatencyMaxMicros() {
+		return _reduceLatency.getMax() / 1000;
+	}
+
+	public long getFormulaLengthP50() {
+		return _formulaLengths.getValueAtPercentile(50);
+	}
+
+	public long getFormulaLengthMax() {
+		return _formulaLengths.getMax();
+	}
+
+	public long getMatchAttempts() {
+		return _matchAttempts.get();
+	}
+
+	public long getMatchSuccesses() {
+		return _matchSuccesses.get();
+	}
+
+	public int getDistinctRulesApplied() {
+		return _ruleApplications.size();
+	}
+
+	public long getRuleApplications() {
+		long total= 0;
+		for (AtomicLong count : _ruleApplications.values())
+			total+= count.get();
+		return total;
+	}
+
+	public String getReport() {
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+		PrintStream out= new PrintStream(bytes);
+		printReport(out);
+		out.flush();
+		return bytes.toString();
+	}
+
+	public void reset() {
+		_reduceLatency.reset();
+		_formulaLengths.reset();
+		_matchAttempts.set(0);
+		_matchSuccesses.set(0);
+		_ruleApplications.clear();
+	}
+}
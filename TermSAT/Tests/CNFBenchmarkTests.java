@@ -0,0 +1,115 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ * 
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ * 
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ * 
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.googlecode.termsat.core.solver.CNFBenchmark;
+import com.googlecode.termsat.core.solver.CNFBenchmark.Result;
+
+/**
+ * Tests that CNFBenchmark results survive a round trip through a CSV file, 
+ * and that runs are compared to a baseline as documented.
+ */
+public class CNFBenchmarkTests extends TestCase {
+
+	public void testCSVRoundTrip() throws IOException {
+		List<Result> results= new ArrayList<Result>();
+		results.add(createResult("a.cnf", "FALSE", 1234));
+		Result skipped= createResult("b.cnf.gz", CNFBenchmark.SKIPPED, 0);
+		skipped.peakFormulaLength= -1;
+		skipped.reduceCalls= -1;
+		results.add(skipped);
+
+		File file= File.createTempFile("benchmark", ".csv");
+		try {
+			CNFBenchmark.writeCSV(results, file);
+			Map<String, Result> read= CNFBenchmark.readCSV(file);
+			assertEquals(results.size(), read.size());
+			for (Result expected : results) {
+				Result actual= read.get(expected.file);
+				assertNotNull(expected.file, actual);
+				assertEquals(expected.result, actual.result);
+				assertEquals(expected.timeMillis, actual.timeMillis);
+				assertEquals(expected.peakHeapBytes, actual.peakHeapBytes);
+				assertEquals(expected.gcMillis, actual.gcMillis);
+				assertEquals(expected.peakFormulaLength, actual.peakFormulaLength);
+				assertEquals(expected.reduceCalls, actual.reduceCalls);
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	public void testSlowerThanThreshold() {
+		Map<String, Result> baseline= createBaseline(createResult("a.cnf", "FALSE", 1000));
+		assertEquals(0, CNFBenchmark.compare(list(createResult("a.cnf", "FALSE", 1100)), baseline, 10));
+		assertEquals(1, CNFBenchmark.compare(list(createResult("a.cnf", "FALSE", 1101)), baseline, 10));
+		assertEquals(0, CNFBenchmark.compare(list(createResult("a.cnf", "FALSE", 500)), baseline, 10));
+	}
+
+	public void testDifferentResult() {
+		Map<String, Result> baseline= createBaseline(createResult("a.cnf", "FALSE", 1000));
+		assertEquals(1, CNFBenchmark.compare(list(createResult("a.cnf", CNFBenchmark.TIMEOUT, 900)), baseline, 10));
+	}
+
+	public void testNotInBaseline() {
+		Map<String, Result> baseline= createBaseline(createResult("a.cnf", "FALSE", 1000));
+		assertEquals(0, CNFBenchmark.compare(list(createResult("b.cnf", "FALSE", 5000)), baseline, 10));
+	}
+
+	/**
+	 * A baseline time of 0 can't be compared, only the result is
+	 */
+	public void testZeroBaselineTime() {
+		Map<String, Result> baseline= createBaseline(createResult("a.cnf", "FALSE", 0));
+		assertEquals(0, CNFBenchmark.compare(list(createResult("a.cnf", "FALSE", 5000)), baseline, 10));
+	}
+
+	private static Result createResult(String file, String result, long timeMillis) {
+		Result r= new Result();
+		r.file= file;
+		r.result= result;
+		r.timeMillis= timeMillis;
+		r.peakHeapBytes= 64L << 20;
+		r.gcMillis= 12;
+		r.peakFormulaLength= 4096;
+		r.reduceCalls= 77;
+		return r;
+	}
+
+	private static Map<String, Result> createBaseline(Result result) {
+		HashMap<String, Result> baseline= new HashMap<String, Result>();
+		baseline.put(result.file, result);
+		return baseline;
+	}
+
+	private static List<Result> list(Result result) {
+		List<Result> results= new ArrayList<Result>();
+		results.add(result);
+		return results;
+	}
+}
@@ -17,14 +17,22 @@
  ******************************************************************************/
 package com.googlecode.termsat.core.tests;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.TestCase;
 
 import com.googlecode.termsat.core.Constant;
+import com.googlecode.termsat.core.Formula;
+import com.googlecode.termsat.core.solver.ArenaSolver;
+import com.googlecode.termsat.core.solver.BottomUpSolver;
 import com.googlecode.termsat.core.solver.CNFFile;
+import com.googlecode.termsat.core.solver.FormulaArena;
 import com.googlecode.termsat.core.solver.RuleRepository;
 import com.googlecode.termsat.core.solver.Solver;
 
@@ -50,14 +58,105 @@ public class CNFTests extends TestCase {
 		runCNFtest("SAT_dat.k45.txt");
 	}
 
-	void runCNFtest(String filename) throws SQLException, IOException {
+	/**
+	 * The bottom-up engine must produce the same formulas as Solver.reduce
+	 */
+	public void testBottomUpEngine() throws SQLException, IOException {
+		String[] filenames= new String[] {
+			"cnf-example-1.txt", "eq.atree.braun.12.unsat.cnf", "rpoc_xits_08_UNSAT.cnf"
+		};
+		RuleRepository rules= new RuleRepository();
+		for (String filename : filenames) {
+			InputStream inputStream= openTestFile(filename);
+			CNFFile expected= CNFFile.readAndReduce(inputStream, new Solver(rules));
+			inputStream.close();
+			
+			inputStream= openTestFile(filename);
+			CNFFile actual= CNFFile.readAndReduce(inputStream, new BottomUpSolver(rules));
+			inputStream.close();
+			
+			assertEquals(filename, expected.getFormula(), actual.getFormula());
+		}
+	}
+
+	/**
+	 * A gzip compressed file must produce the same formula as the uncompressed file
+	 */
+	public void testGzipCompressedInput() throws IOException {
+		String filename= "cnf-example-1.txt";
+		ByteArrayOutputStream uncompressed= new ByteArrayOutputStream();
+		InputStream inputStream= openTestFile(filename);
+		byte[] buffer= new byte[8192];
+		for (int n; 0 <= (n= inputStream.read(buffer));)
+			uncompressed.write(buffer, 0, n);
+		inputStream.close();
+		
+		ByteArrayOutputStream compressed= new ByteArrayOutputStream();
+		GZIPOutputStream gzip= new GZIPOutputStream(compressed);
+		gzip.write(uncompressed.toByteArray());
+		gzip.close();
+		
+		CNFFile expected= CNFFile.read(new ByteArrayInputStream(uncompressed.toByteArray()));
+		CNFFile actual= CNFFile.read(new ByteArrayInputStream(compressed.toByteArray()));
+		assertEquals(expected.getClauseCount(), actual.getClauseCount());
+		assertEquals(expected.getVariableCount(), actual.getVariableCount());
+		assertEquals(expected.getFormula().toString(), actual.getFormula().toString());
+	}
+
+	/**
+	 * A formula copied to an arena must have the same symbols as the formula on the heap
+	 */
+	public void testFormulaArena() throws IOException {
+		InputStream inputStream= openTestFile("eq.atree.braun.12.unsat.cnf");
+		Formula expected= CNFFile.read(inputStream).getFormula();
+		inputStream.close();
+		
+		FormulaArena arena= new FormulaArena();
+		try {
+			long node= arena.add(expected);
+			String text= expected.toString();
+			CharSequence actual= arena.getText(node);
+			assertEquals(text, actual.toString());
+			assertEquals(text.charAt(50), actual.charAt(50));
+			assertEquals(text.substring(10, 100), actual.subSequence(10, 100).toString());
+			assertEquals(text.substring(20, 30), actual.subSequence(10, 100).subSequence(10, 20).toString());
+			assertEquals(node, arena.add(expected));
+			assertEquals(expected, arena.getFormula(node));
+		}
+		finally {
+			arena.close();
+		}
+	}
+
+	/**
+	 * A problem reduced in an arena that is spilled to a file must reduce to FALSE
+	 */
+	public void testOffHeapReduction() throws SQLException, IOException {
+		FormulaArena arena= new FormulaArena(new File(System.getProperty("java.io.tmpdir")));
+		try {
+			InputStream inputStream= openTestFile("eq.atree.braun.12.unsat.cnf");
+			CNFFile file= CNFFile.readAndReduce(inputStream, new ArenaSolver(new RuleRepository(), arena));
+			inputStream.close();
+			assertEquals(Constant.FALSE, file.getFormula());
+		}
+		finally {
+			arena.close();
+		}
+	}
 
+	InputStream openTestFile(String filename) {
 		ClassLoader classLoader = getClass().getClassLoader();
 		String homeFolder = getClass().getPackage().getName().replaceAll("\\.", "/");
-		Solver solver = new Solver(new RuleRepository());
-
 		InputStream inputStream = classLoader.getResourceAsStream(homeFolder + "/" + filename);
 		assertNotNull("Missing input file:" + homeFolder + "/" + filename, inputStream);
+		return inputStream;
+	}
+
+	void runCNFtest(String filename) throws SQLException, IOException {
+
+		Solver solver = new Solver(new RuleRepository());
+
+		InputStream inputStream = openTestFile(filename);
 		CNFFile file = CNFFile.readAndReduce(inputStream, solver);
 		assertEquals(Constant.FALSE, file.getFormula());
 		inputStream.close();
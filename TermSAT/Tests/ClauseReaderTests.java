@@ -0,0 +1,81 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ * 
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ * 
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ * 
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.googlecode.termsat.core.solver.CNFFile;
+
+/**
+ * Tests that CNFFile detects compressed input by its magic number, 
+ * not by the name of the file, see ClauseReader.
+ */
+public class ClauseReaderTests extends TestCase {
+
+	private static final String CNF= "c a small problem\np cnf 3 2\n1 -2 0\n2 3 0\n";
+
+	public void testUncompressedInput() throws IOException {
+		CNFFile file= CNFFile.read(new ByteArrayInputStream(CNF.getBytes("US-ASCII")));
+		assertEquals(3, file.getVariableCount());
+		assertEquals(2, file.getClauseCount());
+		assertNotNull(file.getFormula());
+	}
+
+	public void testGzipInput() throws IOException {
+		ByteArrayOutputStream compressed= new ByteArrayOutputStream();
+		GZIPOutputStream gzip= new GZIPOutputStream(compressed);
+		gzip.write(CNF.getBytes("US-ASCII"));
+		gzip.close();
+
+		CNFFile expected= CNFFile.read(new ByteArrayInputStream(CNF.getBytes("US-ASCII")));
+		CNFFile actual= CNFFile.read(new ByteArrayInputStream(compressed.toByteArray()));
+		assertEquals(expected.getVariableCount(), actual.getVariableCount());
+		assertEquals(expected.getClauseCount(), actual.getClauseCount());
+		assertEquals(expected.getFormula().toString(), actual.getFormula().toString());
+	}
+
+	/**
+	 * Input that starts with the xz magic number must be read as xz, 
+	 * so input that isn't valid xz fails with an IOException, whether 
+	 * or not the xz library is available, instead of being read as text.
+	 */
+	public void testXzMagicNumber() {
+		byte[] input= new byte[] { (byte)0xFD, '7', 'z', 'X', 'Z', 0, 'p', ' ', 'c', 'n', 'f' };
+		try {
+			CNFFile.read(new ByteArrayInputStream(input));
+			fail("Invalid xz input was not detected");
+		}
+		catch (IOException x) {
+			// expected
+		}
+	}
+
+	/**
+	 * Input shorter than any magic number is read as text
+	 */
+	public void testShortInput() throws IOException {
+		CNFFile file= CNFFile.read(new ByteArrayInputStream(new byte[] { 'c' }));
+		assertEquals(0, file.getClauseCount());
+		assertNull(file.getFormula());
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ * 
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ * 
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ * 
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.tests;
+
+import junit.framework.TestCase;
+
+import com.googlecode.termsat.core.solver.LatencyHistogram;
+
+/**
+ * Tests the counts, percentiles, and precision of the LatencyHistogram.
+ */
+public class LatencyHistogramTests extends TestCase {
+
+	public void testEmpty() {
+		LatencyHistogram histogram= new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0.0, histogram.getMean(), 0.0);
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+	/**
+	 * Values below 16 each have their own bucket
+	 */
+	public void testSmallValuesAreExact() {
+		LatencyHistogram histogram= new LatencyHistogram();
+		for (int value= 0; value < 16; value++)
+			histogram.record(value);
+		assertEquals(16, histogram.getCount());
+		assertEquals(15, histogram.getMax());
+		assertEquals(7.5, histogram.getMean(), 0.0);
+		assertEquals(7, histogram.getValueAtPercentile(50));
+		assertEquals(15, histogram.getValueAtPercentile(100));
+	}
+
+	/**
+	 * Larger values are accurate to within about 6%, and never overstated
+	 */
+	public void testPercentilePrecision() {
+		LatencyHistogram histogram= new LatencyHistogram();
+		for (int value= 1; value <= 10000; value++)
+			histogram.record(value);
+		assertEquals(10000, histogram.getMax());
+		assertEquals(5000.5, histogram.getMean(), 0.0);
+		long[] expected= new long[] { 5000, 9000, 9900 };
+		double[] percentiles= new double[] { 50, 90, 99 };
+		for (int p= 0; p < percentiles.length; p++) {
+			long actual= histogram.getValueAtPercentile(percentiles[p]);
+			assertTrue("p"+percentiles[p]+"="+actual, actual <= expected[p]);
+			assertTrue("p"+percentiles[p]+"="+actual, expected[p] * 0.94 <= actual);
+		}
+		long p100= histogram.getValueAtPercentile(100);
+		assertTrue("p100="+p100, 10000 * 0.94 <= p100 && p100 <= 10000);
+	}
+
+	public void testLargestValue() {
+		LatencyHistogram histogram= new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+		assertTrue(Long.MAX_VALUE * 0.94 <= histogram.getValueAtPercentile(50));
+	}
+
+	public void testNegativeValuesAreRecordedAsZero() {
+		LatencyHistogram histogram= new LatencyHistogram();
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(100));
+	}
+
+	public void testReset() {
+		LatencyHistogram histogram= new LatencyHistogram();
+		histogram.record(100);
+		histogram.record(200);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(100));
+		histogram.record(3);
+		assertEquals(3, histogram.getValueAtPercentile(50));
+	}
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.tests;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import com.googlecode.termsat.core.Formula;
+import com.googlecode.termsat.core.InstanceRecognizer;
+import com.googlecode.termsat.core.ruledb.ReductionRule;
+import com.googlecode.termsat.core.ruledb.RuleDatabase;
+import com.googlecode.termsat.core.ruledb.RuleIndexer;
+import com.googlecode.termsat.core.utils.TrieMap;
+import com.googlecode.termsat.core.utils.TrieMap.Node;
+
+/**
+ * Tests that the parallel export of the RuleIndexer numbers the trie of
+ * noncanonical formulas the same way as a serial pre-order traversal,
+ * no matter how many threads are used.
+ */
+public class RuleIndexerTests extends TestCase {
+
+	// pairs of noncanonical and canonical formulas
+	private static final String[][] RULES= new String[][] {
+		{ "--1.", "1." },
+		{ "*-1.1.", "1." },
+		{ "*1.-1.", "-1." },
+		{ "-*1.-1.", "1." },
+		{ "*1.*1.2.", "*1.2." },
+		{ "*1.*2.1.", "*1.1." },
+		{ "*2.*1.1.", "*1.1." },
+		{ "**1.2.1.", "1." },
+		{ "**1.2.2.", "*-1.2." },
+		{ "*-1.*1.2.", "*1.1." },
+		{ "-*1.*2.1.", "-*1.1." }
+	};
+
+	public void testSingleThreadExport() throws Exception {
+		assertEquals(getPreOrderRecords(), exportIndex("single", 1));
+	}
+
+	public void testParallelExport() throws Exception {
+		assertEquals(getPreOrderRecords(), exportIndex("parallel", 4));
+	}
+
+	/*
+	 * @return the records in the NONCANONICAL table created by the RuleIndexer
+	 */
+	private List<String> exportIndex(String name, int threadCount) throws SQLException {
+		String indexURL= "jdbc:derby:memory:"+getClass().getSimpleName()+"-"+name+";create=true";
+		RuleIndexer indexer= new RuleIndexer(indexURL, threadCount);
+		for (String[] rule : RULES)
+			indexer.addRule(new ReductionRule(Formula.createFormula(rule[0]), Formula.createFormula(rule[1])));
+		indexer.createIndex(getCanonicalFormulas().iterator(), null);
+
+		ArrayList<String> records= new ArrayList<String>();
+		Connection connection= RuleDatabase.createConnection(indexURL);
+		try {
+			Statement s= connection.createStatement();
+			ResultSet resultSet= s.executeQuery("SELECT ID, SYMBOL, PARENT, CANONICAL_ID FROM NONCANONICAL ORDER BY ID");
+			while (resultSet.next())
+				records.add(resultSet.getInt(1)+" "+resultSet.getString(2)+" "+resultSet.getInt(3)+" "+resultSet.getInt(4));
+			resultSet.close();
+			s.close();
+		}
+		finally {
+			connection.close();
+		}
+		return records;
+	}
+
+	/*
+	 * The canonical formulas in lexical order, the RuleIndexer assigns ids
+	 * -1, -2, ... in this order.
+	 */
+	private List<Formula> getCanonicalFormulas() {
+		TreeMap<String, Formula> canonicals= new TreeMap<String, Formula>();
+		for (String[] rule : RULES)
+			canonicals.put(rule[1], Formula.createFormula(rule[1]));
+		return new ArrayList<Formula>(canonicals.values());
+	}
+
+	/*
+	 * Numbers the same trie serially, in pre-order
+	 */
+	private List<String> getPreOrderRecords() {
+		final TreeMap<String, Integer> canonicalIds= new TreeMap<String, Integer>();
+		for (Formula canonical : getCanonicalFormulas())
+			canonicalIds.put(canonical.toString(), -(canonicalIds.size() + 1));
+		final TreeMap<String, String> canonicalOf= new TreeMap<String, String>();
+		InstanceRecognizer trie= new InstanceRecognizer();
+		for (String[] rule : RULES) {
+			trie.addFormula(Formula.createFormula(rule[0]));
+			canonicalOf.put(rule[0], rule[1]);
+		}
+
+		final ArrayList<String> records= new ArrayList<String>();
+		trie.accept(new TrieMap.Visitor<Formula, Void>() {
+			int _count= 0;
+			Stack<Integer> _path= new Stack<Integer>();
+			public boolean visit(CharSequence key, Node<Formula> node) {
+				int id= ++_count;
+				int parentId= _path.isEmpty() ? 0 : _path.lastElement();
+				int canonicalId= 0;
+				if (node.getValue() != null)
+					canonicalId= canonicalIds.get(canonicalOf.get(node.getValue().toString()));
+				records.add(id+" "+node.getChar()+" "+parentId+" "+canonicalId);
+				_path.push(id);
+				return true;
+			}
+			public void leave(CharSequence key, Node<Formula> node) {
+				_path.pop();
+			}
+			public boolean isComplete() { return false; }
+			public Void getResult() { return null; }
+		});
+		assertFalse(records.isEmpty());
+		return records;
+	}
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.googlecode.termsat.core.Formula;
+import com.googlecode.termsat.core.ruledb.ReductionRule;
+import com.googlecode.termsat.core.ruledb.RuleLoader;
+
+/**
+ * Tests that rules written to a RuleLoader snapshot are read back unchanged,
+ * and that a snapshot is not used when the database state differs.
+ */
+public class RuleLoaderTests extends TestCase {
+
+	// pairs of noncanonical and canonical formulas, some canonical formulas are shared
+	private static final String[][] RULES= new String[][] {
+		{ "--1.", "1." },
+		{ "*-1.1.", "1." },
+		{ "*1.-1.", "-1." },
+		{ "*1.*1.2.", "*1.2." },
+		{ "**1.2.1.", "1." }
+	};
+
+	private static final String STATE= "0:3:17;1:5:12;";
+
+	public void testSnapshotRoundTrip() throws IOException {
+		File snapshot= File.createTempFile("rules", ".snapshot");
+		try {
+			RuleLoader.writeSnapshot(snapshot, STATE, createRules().iterator());
+
+			RuleLoader.Cursor cursor= RuleLoader.openSnapshot(snapshot, STATE);
+			assertNotNull(cursor);
+			ArrayList<String> actual= new ArrayList<String>();
+			try {
+				while (cursor.hasNext()) {
+					ReductionRule rule= cursor.next();
+					actual.add(rule.formula+" "+rule.reduction);
+				}
+			}
+			finally {
+				cursor.close();
+			}
+
+			ArrayList<String> expected= new ArrayList<String>();
+			for (String[] rule : RULES)
+				expected.add(Formula.createFormula(rule[0])+" "+Formula.createFormula(rule[1]));
+			assertEquals(expected, actual);
+		}
+		finally {
+			snapshot.delete();
+		}
+	}
+
+	public void testStaleSnapshot() throws IOException {
+		File snapshot= File.createTempFile("rules", ".snapshot");
+		try {
+			RuleLoader.writeSnapshot(snapshot, STATE, createRules().iterator());
+
+			// one more non-canonical formula was added to the database
+			assertNull(RuleLoader.openSnapshot(snapshot, "0:4:18;1:5:12;"));
+		}
+		finally {
+			snapshot.delete();
+		}
+	}
+
+	private List<ReductionRule> createRules() {
+		ArrayList<ReductionRule> rules= new ArrayList<ReductionRule>();
+		for (String[] rule : RULES)
+			rules.add(new ReductionRule(Formula.createFormula(rule[0]), Formula.createFormula(rule[1])));
+		return rules;
+	}
+}
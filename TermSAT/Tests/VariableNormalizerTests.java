@@ -0,0 +1,50 @@
+/*******************************************************************************
+ *     termsat SAT solver
+ *     Copyright (C) 2010 Ted Stockwell <emorning@yahoo.com>
+ * 
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ * 
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ * 
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.googlecode.termsat.core.tests;
+
+import junit.framework.TestCase;
+
+import com.googlecode.termsat.core.ruledb.VariableNormalizer;
+
+/**
+ * Tests that the VariableNormalizer maps exactly the formulas that are 
+ * variable renamings of each other to the same normalized formula.
+ */
+public class VariableNormalizerTests extends TestCase {
+
+	public void testVariablesNumberedInOrderOfAppearance() {
+		assertEquals("*1.-2.", VariableNormalizer.normalize("*3.-1."));
+		assertEquals("*1.*2.1.", VariableNormalizer.normalize("*2.*1.2."));
+		assertEquals("-1.", VariableNormalizer.normalize("-1."));
+	}
+
+	public void testMultipleDigitVariables() {
+		assertEquals("*1.*2.1.", VariableNormalizer.normalize("*12.*3.12."));
+		assertEquals("*1.2.", VariableNormalizer.normalize("*1.11."));
+	}
+
+	public void testRenamingsHaveTheSameNormalForm() {
+		assertEquals(VariableNormalizer.normalize("**1.2.1."), VariableNormalizer.normalize("**3.1.3."));
+		assertEquals(VariableNormalizer.normalize("-*2.-3."), VariableNormalizer.normalize("-*3.-2."));
+	}
+
+	public void testOtherFormulasHaveDifferentNormalForms() {
+		assertFalse(VariableNormalizer.normalize("*1.*1.2.").equals(VariableNormalizer.normalize("*1.*2.1.")));
+		assertFalse(VariableNormalizer.normalize("*1.1.").equals(VariableNormalizer.normalize("*1.2.")));
+	}
+}